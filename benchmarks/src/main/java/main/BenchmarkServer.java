@@ -0,0 +1,42 @@
+package main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Configures the server's shared state once per benchmark JVM. Flood limits are turned off so they never throttle
+ * what is being measured, and logging is off so it never shows up in the results.
+ *
+ * @author Kelan
+ */
+final class BenchmarkServer
+{
+    private static boolean configured;
+
+    private BenchmarkServer()
+    {
+    }
+
+    static synchronized void configure(String... extra)
+    {
+        if (configured)
+            return;
+
+        String[] args = new String[4 + extra.length];
+        args[0] = "--log-level=off";
+        args[1] = "--flood-messages=0";
+        args[2] = "--flood-bytes=0";
+        args[3] = "--compression=none";
+        System.arraycopy(extra, 0, args, 4, extra.length);
+
+        try
+        {
+            Server.configure(args);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        configured = true;
+    }
+}
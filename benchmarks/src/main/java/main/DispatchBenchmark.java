@@ -0,0 +1,63 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of dispatching a heartbeat from a named client, from the bytes arriving to the ping being recorded, in each
+ * framing. Neither framing should allocate anything on this path; run with {@code -prof gc} to check that
+ * {@code gc.alloc.rate.norm} stays at 0 bytes per operation.
+ *
+ * @author Kelan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+    private final ByteBuffer binaryPing = Protocol.encode(Protocol.PING, "");
+    private final ByteBuffer textPing = ByteBuffer.wrap("PING\n".getBytes(StandardCharsets.US_ASCII));
+
+    private MemoryConnection binary;
+    private MemoryConnection text;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        BenchmarkServer.configure();
+
+        binary = new MemoryConnection();
+        binary.opened();
+        binary.receive(ByteBuffer.wrap("FRAMING binary\n".getBytes(StandardCharsets.US_ASCII)));
+        binary.receive(Protocol.encode(Protocol.NAME, "benchbinary"));
+
+        text = MemoryConnection.named("benchtext");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        binary.close();
+        text.close();
+    }
+
+    @Benchmark
+    public boolean binaryPing()
+    {
+        binaryPing.rewind();
+        return binary.receive(binaryPing);
+    }
+
+    @Benchmark
+    public boolean textPing()
+    {
+        textPing.rewind();
+        return text.receive(textPing);
+    }
+}
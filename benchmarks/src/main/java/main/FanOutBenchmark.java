@@ -0,0 +1,58 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Server#sendToAll(String, String, boolean)} delivering one chat line to every connected user, as
+ * the number of users grows.
+ *
+ * @author Kelan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark
+{
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    @Param({"TEXT", "BINARY"})
+    public Protocol.Framing framing;
+
+    private final List<MemoryConnection> connections = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        BenchmarkServer.configure();
+
+        for (int i = 0; i < recipients; i++)
+        {
+            MemoryConnection connection = MemoryConnection.named("user" + i);
+            connection.framing = framing;
+            connections.add(connection);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (MemoryConnection connection : connections)
+            connection.close();
+
+        connections.clear();
+    }
+
+    @Benchmark
+    public boolean sendToAll()
+    {
+        return Server.sendToAll("bench", "The quick brown fox jumps over the lazy dog", false);
+    }
+}
@@ -0,0 +1,68 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the name handshake, from the connection opening to the name being accepted or denied. An accepted
+ * handshake includes joining the default channel, the history replay and the join announcement, and is followed
+ * by the disconnect so the name is free again for the next invocation.
+ * <p>
+ * Every accepted handshake broadcasts a join and a leave, so the history is filled to capacity before measuring.
+ * That way each invocation replays as much as the last, rather than more as the run goes on. Search indexing is
+ * turned off, and no durable log is kept, so neither of them grows either.
+ *
+ * @author Kelan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark
+{
+    private static final byte[] VALID = "benchuser\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID = "not a valid name!\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOO_LONG = "abcdefghijklmnopqrstuvwxyz0123456789\n".getBytes(StandardCharsets.UTF_8);
+    private static final int HISTORY = 1000;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        BenchmarkServer.configure("--history=" + HISTORY, "--search-index=0");
+
+        for (int i = 0; i < HISTORY; i++)
+            Server.deliverToAll("SERVER", "user" + i + " has joined the server!", false);
+    }
+
+    @Benchmark
+    public long accepted()
+    {
+        return handshake(VALID);
+    }
+
+    @Benchmark
+    public long deniedInvalid()
+    {
+        return handshake(INVALID);
+    }
+
+    @Benchmark
+    public long deniedTooLong()
+    {
+        return handshake(TOO_LONG);
+    }
+
+    private static long handshake(byte[] name)
+    {
+        MemoryConnection connection = new MemoryConnection();
+        connection.opened();
+        connection.receive(ByteBuffer.wrap(name));
+        connection.close();
+        return connection.written;
+    }
+}
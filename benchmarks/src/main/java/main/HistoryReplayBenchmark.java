@@ -0,0 +1,56 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of replaying recent history to a user that has just joined: taking the snapshot and copying it into one
+ * buffer in the user's framing.
+ *
+ * @author Kelan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryReplayBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int replay;
+
+    @Param({"TEXT", "BINARY"})
+    public Protocol.Framing framing;
+
+    private MessageHistory history;
+    private MemoryConnection connection;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        BenchmarkServer.configure("--replay=" + replay);
+
+        history = new MessageHistory(1000, Long.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++)
+            history.add(Server.encode("MESSAGE[user" + i % 50 + "]Message number " + i + " with some typical chat text"));
+
+        connection = MemoryConnection.named("bench");
+        connection.framing = framing;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        connection.close();
+    }
+
+    @Benchmark
+    public long replayHistory()
+    {
+        connection.replayHistory(history);
+        return connection.written;
+    }
+}
@@ -0,0 +1,111 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a chat line through a real server over loopback: the client sends a line and waits for the
+ * server's broadcast of it to come back. Covers the socket layers, decoding, dispatch and fan-out together.
+ *
+ * @author Kelan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark
+{
+    private static final int PORT = 18088;
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    private Socket socket;
+    private BufferedReader in;
+    private OutputStream out;
+    private byte[] line;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException
+    {
+        BenchmarkServer.configure("--port=" + PORT);
+
+        Thread server = new Thread(() -> {
+            try
+            {
+                Server.serve(mode);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+
+        socket = connect();
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedOutputStream(socket.getOutputStream());
+
+        readUntil("SUBMIT_NAME");
+        write("bench\n".getBytes(StandardCharsets.UTF_8));
+        readUntil("NAME_ACCEPTED");
+
+        line = "The quick brown fox jumps over the lazy dog\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        write("DISCONNECT\n".getBytes(StandardCharsets.UTF_8));
+        socket.close();
+        Server.setRunning(false);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException
+    {
+        write(line);
+        return readUntil("MESSAGE[bench]");
+    }
+
+    private Socket connect() throws IOException, InterruptedException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            try
+            {
+                return new Socket("127.0.0.1", PORT);
+            } catch (IOException e)
+            {
+                if (attempt >= 50)
+                    throw e;
+
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException
+    {
+        out.write(bytes);
+        out.flush();
+    }
+
+    private String readUntil(String prefix) throws IOException
+    {
+        String received;
+
+        while ((received = in.readLine()) != null)
+            if (received.startsWith(prefix))
+                return received;
+
+        throw new EOFException("Server closed the connection");
+    }
+}
@@ -0,0 +1,63 @@
+package main;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection with no socket behind it, for driving the server in memory. Whatever is queued for it is consumed
+ * straight away on the sending thread, so a benchmark measures the server's own work rather than the network.
+ *
+ * @author Kelan
+ */
+class MemoryConnection extends Server.Connection
+{
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    /** Total bytes the server has queued for this connection. */
+    long written;
+
+    /**
+     * Opens a connection and completes the handshake under the given name.
+     */
+    static MemoryConnection named(String name)
+    {
+        MemoryConnection connection = new MemoryConnection();
+        connection.opened();
+        connection.receive(ByteBuffer.wrap((name + "\n").getBytes(StandardCharsets.UTF_8)));
+        return connection;
+    }
+
+    @Override
+    protected void writeReady()
+    {
+        ByteBuffer buffer;
+
+        while ((buffer = outbound.peek()) != null)
+        {
+            written += buffer.remaining();
+            outbound.consumed(buffer.remaining());
+            buffer.position(buffer.limit());
+            outbound.remove();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        closed();
+    }
+
+    @Override
+    public void abort()
+    {
+        closed();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress()
+    {
+        return ADDRESS;
+    }
+}
@@ -0,0 +1,56 @@
+package main;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the small string checks on the connect and receive paths: validating an address typed into the client,
+ * and splitting the chat lines the client receives.
+ *
+ * @author Kelan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark
+{
+    public String address = "192.168.0.1:8088";
+    public String hostname = "chat.example.com:8088";
+    public String invalidAddress = "not an address";
+    public String message = "MESSAGE[someuser]The quick brown fox\\njumps over the lazy dog";
+    public String channelMessage = "CHANNEL_MESSAGE[#general][someuser]The quick brown fox jumps over the lazy dog";
+
+    @Benchmark
+    public boolean validateIPv4()
+    {
+        return Utils.validateIPv4(address, true);
+    }
+
+    @Benchmark
+    public boolean validateHostname()
+    {
+        return Utils.validateIPv4(hostname, true);
+    }
+
+    @Benchmark
+    public boolean validateInvalid()
+    {
+        return Utils.validateIPv4(invalidAddress, true);
+    }
+
+    @Benchmark
+    public String[] parseMessage()
+    {
+        return ChatClient.parseMessage(message);
+    }
+
+    @Benchmark
+    public String[] parseChannelMessage()
+    {
+        return ChatClient.parseChannelMessage(channelMessage);
+    }
+}
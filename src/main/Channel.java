@@ -0,0 +1,233 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+/**
+ * A chat room with its own members and history. Messages sent to a channel only fan out to its members, so users
+ * pay only for the rooms they are in. Membership is a concurrent map, so fan-out never blocks parts.
+ * <p>
+ * Nothing here takes a lock. A new member is added first and only then has the history replayed to it, so every
+ * message is either broadcast after the member is visible or already in the history it is replayed from, and often
+ * both. Until its replay has been queued, messages for the member are held back so they do not overtake it; after
+ * that, any message whose sequence number was in the replay is dropped, so each message is sent exactly once.
+ *
+ * @author Kelan
+ */
+public class Channel
+{
+    private final String name;
+    private final Map<Server.Connection, Member> members = new ConcurrentHashMap<>();
+    private final MessageHistory history;
+
+    public Channel(String name, MessageHistory history)
+    {
+        this.name = name;
+        this.history = history;
+    }
+
+    /**
+     * Records an encoded message in this channel's history and queues it for every member.
+     *
+     * @return the number of members the message was queued for.
+     */
+    public int broadcast(Frame frame)
+    {
+        history.add(frame);
+
+        int count = 0;
+
+        for (Member member : members.values())
+        {
+            member.deliver(frame);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Records an encoded message in this channel's history and queues it for every connection in
+     * {@code recipients} that {@code filter} accepts, members or not.
+     *
+     * @return the number of connections the message was queued for.
+     */
+    int broadcast(Frame frame, Iterable<Server.Connection> recipients, Predicate<Server.Connection> filter)
+    {
+        history.add(frame);
+
+        int count = 0;
+
+        for (Server.Connection recipient : recipients)
+        {
+            if (filter.test(recipient))
+            {
+                Member member = members.get(recipient);
+
+                if (member != null)
+                    member.deliver(frame);
+                else
+                    recipient.send(frame);
+
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Adds a member. Messages broadcast from now on are held for it until {@link #replayed} is called.
+     *
+     * @return false if it was a member already.
+     */
+    boolean add(Server.Connection connection)
+    {
+        return members.putIfAbsent(connection, new Member(connection)) == null;
+    }
+
+    /**
+     * Lets messages through to a member once its history replay has been queued, starting with the ones held
+     * meanwhile, and skipping any that were replayed.
+     *
+     * @param frames the messages replayed, oldest first.
+     */
+    void replayed(Server.Connection connection, List<Frame> frames)
+    {
+        Member member = members.get(connection);
+
+        if (member != null)
+            member.release(frames);
+    }
+
+    boolean remove(Server.Connection connection)
+    {
+        return members.remove(connection) != null;
+    }
+
+    public boolean isMember(Server.Connection connection)
+    {
+        return members.containsKey(connection);
+    }
+
+    public boolean isEmpty()
+    {
+        return members.isEmpty();
+    }
+
+    public Set<Server.Connection> members()
+    {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    public MessageHistory history()
+    {
+        return history;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+     * Channel names are a '#' followed by 1 to 32 letters, digits, '-' or '_'.
+     */
+    public static boolean isValidName(String name)
+    {
+        if (name == null || name.length() < 2 || name.length() > 33 || name.charAt(0) != '#')
+            return false;
+
+        for (int i = 1; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A member's delivery state. Before its replay has been queued, messages wait in {@code held}. Afterwards each
+     * message is sent unless its sequence number is below {@code next}, the one after the newest replayed, and not
+     * one of the few {@code gaps} the replay skipped because their broadcast was still being recorded.
+     */
+    private static final class Member
+    {
+        private final Server.Connection connection;
+        private final Queue<Frame> held = new ConcurrentLinkedQueue<>();
+        private long next;
+        private long[] gaps;
+        /** Written after next and gaps, so seeing it set means they can be read. */
+        private volatile boolean replayed;
+
+        private Member(Server.Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        private void deliver(Frame frame)
+        {
+            if (replayed)
+            {
+                if (!wasReplayed(frame))
+                    connection.send(frame);
+                return;
+            }
+
+            held.add(frame);
+
+            // the replay may have been queued, and the held messages sent, while this one was being added
+            if (replayed)
+                flush();
+        }
+
+        private void release(List<Frame> frames)
+        {
+            long[] gaps = new long[0];
+            int count = 0;
+
+            for (int i = 1; i < frames.size(); i++)
+            {
+                for (long sequence = frames.get(i - 1).sequence() + 1; sequence < frames.get(i).sequence(); sequence++)
+                {
+                    if (count == gaps.length)
+                        gaps = Arrays.copyOf(gaps, Math.max(4, count * 2));
+
+                    gaps[count++] = sequence;
+                }
+            }
+
+            this.gaps = Arrays.copyOf(gaps, count);
+            this.next = frames.isEmpty() ? Long.MIN_VALUE : frames.get(frames.size() - 1).sequence() + 1;
+            replayed = true;
+            flush();
+        }
+
+        private void flush()
+        {
+            Frame frame;
+
+            while ((frame = held.poll()) != null)
+                if (!wasReplayed(frame))
+                    connection.send(frame);
+        }
+
+        /**
+         * Messages older than the first one replayed count too, since the replay left them out on purpose.
+         */
+        private boolean wasReplayed(Frame frame)
+        {
+            return frame.sequence() < next && Arrays.binarySearch(gaps, frame.sequence()) < 0;
+        }
+    }
+}
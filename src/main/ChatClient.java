@@ -0,0 +1,962 @@
+package main;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A client connection to a chat server with no user interface, for anything that wants to talk to the server:
+ * the Swing {@link Client}, bots, bridges and tests.
+ * <p>
+ * Nothing in the API blocks. {@link #connect()} connects in the background, and every send is queued for a writer
+ * thread that writes as much as is queued and only flushes once the queue is empty, so any number of sends can be
+ * in flight at once. Compression and binary framing are negotiated automatically when the server offers them.
+ * <p>
+ * Everything the server sends is reported to a {@link Listener}, in order, on the connection's reader thread. A
+ * listener that blocks holds up reading, so one that does real work should hand events off to its own thread.
+ * <p>
+ * With {@link #setReconnect(boolean)} on, a dropped connection is retried with a growing delay. The client logs in
+ * again with the same name, rejoins its channels, and asks the server for only the messages it missed in each, so a
+ * flaky network costs a short tail of history rather than the whole room. Sends made while reconnecting are held
+ * and sent once the name is accepted again.
+ *
+ * @author Kelan
+ */
+public class ChatClient
+{
+    public static final String DEFAULT_CHANNEL = "#general";
+
+    /**
+     * Receives the events of one connection. Every method does nothing by default.
+     */
+    public interface Listener
+    {
+        default void connected(SocketAddress address)
+        {
+        }
+
+        /**
+         * The connection could not be opened.
+         */
+        default void connectFailed(IOException e)
+        {
+        }
+
+        /**
+         * The server is waiting for a name, and none has been given to {@link #login(String)} yet.
+         */
+        default void nameRequested()
+        {
+        }
+
+        default void nameAccepted(String name)
+        {
+        }
+
+        /**
+         * The name was refused. The server then asks again, so the next {@link #login(String)} is sent straight
+         * away.
+         */
+        default void nameDenied(String reason)
+        {
+        }
+
+        default void message(String from, String body)
+        {
+        }
+
+        default void channelMessage(String channel, String from, String body)
+        {
+        }
+
+        default void joined(String channel)
+        {
+        }
+
+        default void parted(String channel)
+        {
+        }
+
+        default void channelDenied(String reason)
+        {
+        }
+
+        /**
+         * The server asked clients to clear the given number of past messages, or all of them if negative.
+         */
+        default void purged(int amount)
+        {
+        }
+
+        /**
+         * One page of results for {@link #search(String, int)}: the number of matching messages across every page,
+         * and this page's messages as sender and body pairs, newest first.
+         */
+        default void searchResults(int total, int page, List<String[]> hits)
+        {
+        }
+
+        default void kicked(String reason)
+        {
+        }
+
+        default void serverClosing()
+        {
+        }
+
+        /**
+         * The connection dropped, and another attempt will be made after {@code delayMillis}. Events from the next
+         * connection are reported as usual, except that channels still joined are not reported again.
+         */
+        default void reconnecting(int attempt, long delayMillis)
+        {
+        }
+
+        /**
+         * A reconnection could not pick up where the last connection left off, because the server was restarted or
+         * does not support resuming, so the history that follows may repeat messages that were already received.
+         */
+        default void historyReset()
+        {
+        }
+
+        /**
+         * The connection is over, and nothing more will be reported. Not called if the connection was never opened.
+         * When reconnecting, only called once the client gives up: after {@link #disconnect()}, a kick, or a
+         * connection that dropped before a name was accepted.
+         */
+        default void disconnected()
+        {
+        }
+    }
+
+    /** Queued where the outbound stream switches to deflate. */
+    private static final Object START_DEFLATE = new Object();
+    /** Queued where the outbound stream switches to binary frames. */
+    private static final Object START_BINARY = new Object();
+    /** Queued to close the outbound stream once everything before it is written. */
+    private static final Object END = new Object();
+
+    private static final long MIN_RECONNECT_DELAY = 1000;
+    private static final long MAX_RECONNECT_DELAY = 30000;
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private ThreadFactory threadFactory = Thread::new;
+    private boolean compression = true;
+    private boolean binaryFraming = true;
+    private boolean reconnect;
+
+    private volatile Thread reader;
+    private volatile Socket socket;
+    private volatile String username;
+    /** Set once this client should not reconnect, because it was asked to leave or was kicked. */
+    private volatile boolean leaving;
+    /** The current connection's queue, replaced for each new connection. */
+    private volatile LinkedBlockingQueue<Object> outbound = new LinkedBlockingQueue<>();
+    /** Sends made before the name was accepted, released once it is. Also guards {@link #named}. */
+    private final List<Request> held = new ArrayList<>();
+    private boolean named;
+    private volatile boolean awaitingName;
+    private final AtomicReference<String> pendingName = new AtomicReference<>();
+
+    // only used by the reader thread
+    private DataInputStream in;
+    private Protocol.Framing framing = Protocol.Framing.TEXT;
+    private String offers;
+    private boolean negotiated;
+    private Inflater inflater;
+
+    // resuming, only used by the reader thread
+    /** The server run the sequence numbers below belong to. */
+    private String epoch;
+    private String resumeToken;
+    /** Channels joined, with the sequence number of the next message expected in each, or -1 if none yet. */
+    private final Map<String, Long> channels = new LinkedHashMap<>();
+    /** Whether this connection asked to resume where the last one left off. */
+    private boolean resuming;
+    /** Sequence number from the last SEQ line, which belongs to the message straight after it. */
+    private long sequence = -1;
+
+    // the search results being received, only used by the reader thread
+    private int searchTotal;
+    private int searchPage;
+    private int searchRemaining;
+    private List<String[]> searchHits;
+
+    public ChatClient(String host, int port, Listener listener)
+    {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the factory for the reader and writer threads. Must be called before {@link #connect()}.
+     */
+    public ChatClient setThreadFactory(ThreadFactory threadFactory)
+    {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Whether to accept the server's offer of deflate compression. Must be called before {@link #connect()}.
+     */
+    public ChatClient setCompression(boolean compression)
+    {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Whether to accept the server's offer of binary framing. Must be called before {@link #connect()}.
+     */
+    public ChatClient setBinaryFraming(boolean binaryFraming)
+    {
+        this.binaryFraming = binaryFraming;
+        return this;
+    }
+
+    /**
+     * Whether to reconnect and resume when the connection drops after a name was accepted. Off by default. Must be
+     * called before {@link #connect()}.
+     */
+    public ChatClient setReconnect(boolean reconnect)
+    {
+        this.reconnect = reconnect;
+        return this;
+    }
+
+    /**
+     * Connects in the background, reporting {@link Listener#connected(SocketAddress)} or
+     * {@link Listener#connectFailed(IOException)}.
+     */
+    public void connect()
+    {
+        Thread reader = threadFactory.newThread(this::run);
+        reader.setName("chat-client-reader");
+        this.reader = reader;
+        reader.start();
+    }
+
+    /**
+     * Asks for a name, now if the server is waiting for one, or as soon as it asks otherwise.
+     */
+    public void login(String name)
+    {
+        pendingName.set(name);
+
+        if (awaitingName)
+            submitPendingName();
+    }
+
+    /**
+     * Sends a chat line to {@link #DEFAULT_CHANNEL}. The body may contain newlines.
+     */
+    public void send(String message)
+    {
+        queue(new Request(Protocol.CHAT, message));
+    }
+
+    /**
+     * Sends a chat line to a channel this client has joined. The body may contain newlines.
+     */
+    public void send(String channel, String message)
+    {
+        if (channel.equals(DEFAULT_CHANNEL))
+            send(message);
+        else
+            queue(new Request(Protocol.CHANNEL_CHAT, channel, message));
+    }
+
+    public void join(String channel)
+    {
+        queue(new Request(Protocol.JOIN, channel));
+    }
+
+    public void part(String channel)
+    {
+        queue(new Request(Protocol.PART, channel));
+    }
+
+    /**
+     * Asks for one page of the past messages in {@link #DEFAULT_CHANNEL} containing every word in {@code query}.
+     * A word of the form {@code from:name} matches the sender instead. The results are reported to
+     * {@link Listener#searchResults(int, int, List)}.
+     *
+     * @param page which page of results to return, from 0.
+     */
+    public void search(String query, int page)
+    {
+        queue(new Request(Protocol.SEARCH, page + " " + query.replace('\n', ' ')));
+    }
+
+    /**
+     * Leaves the server once everything already sent has been written. Before a name has been accepted this
+     * cancels the login instead.
+     */
+    public void disconnect()
+    {
+        leaving = true;
+
+        synchronized (held)
+        {
+            if (named)
+                outbound.add(new Request(Protocol.DISCONNECT, ""));
+            else
+                outbound.add(new Request(Protocol.NAME, "\0"));
+
+            outbound.add(END);
+        }
+
+        // stops waiting to reconnect
+        Thread reader = this.reader;
+
+        if (reader != null && !isConnected())
+            reader.interrupt();
+    }
+
+    /**
+     * Closes the connection straight away, discarding anything not yet written.
+     */
+    public void close()
+    {
+        Socket socket = this.socket;
+
+        if (socket != null)
+        {
+            try
+            {
+                socket.close();
+            } catch (IOException e)
+            {
+                // closing anyway
+            }
+        }
+    }
+
+    public boolean isConnected()
+    {
+        Socket socket = this.socket;
+        return socket != null && !socket.isClosed();
+    }
+
+    /**
+     * @return the accepted name, or null before the server has accepted one.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public SocketAddress getRemoteAddress()
+    {
+        Socket socket = this.socket;
+        return socket != null ? socket.getRemoteSocketAddress() : null;
+    }
+
+    /**
+     * Queues a request for the writer, holding it back until the name has been accepted, as anything sent before
+     * then would be taken for another attempt at a name.
+     */
+    private void queue(Request request)
+    {
+        synchronized (held)
+        {
+            if (named)
+                outbound.add(request);
+            else
+                held.add(request);
+        }
+    }
+
+    private void submitPendingName()
+    {
+        String name = pendingName.getAndSet(null);
+
+        if (name != null)
+        {
+            awaitingName = false;
+            outbound.add(new Request(Protocol.NAME, name));
+        }
+    }
+
+    private void run()
+    {
+        boolean opened = false;
+        int attempt = 0;
+
+        while (true)
+        {
+            IOException failure = session();
+
+            if (failure != null && !opened)
+            {
+                listener.connectFailed(failure);
+                return;
+            }
+
+            if (failure == null)
+            {
+                opened = true;
+                attempt = 0;
+            }
+
+            if (!reconnect || leaving || username == null)
+            {
+                listener.disconnected();
+                return;
+            }
+
+            // doubles up to the maximum, with jitter so clients dropped together do not all come back together
+            long delay = Math.min(MAX_RECONNECT_DELAY, MIN_RECONNECT_DELAY << Math.min(attempt++, 5));
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            listener.reconnecting(attempt, delay);
+
+            try
+            {
+                Thread.sleep(delay);
+            } catch (InterruptedException e)
+            {
+                // disconnected while waiting
+            }
+
+            if (leaving)
+            {
+                listener.disconnected();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens one connection and reads from it until it ends.
+     *
+     * @return why the connection could not be opened, or null once it was opened and has ended.
+     */
+    private IOException session()
+    {
+        Socket socket = new Socket();
+
+        try
+        {
+            socket.connect(new InetSocketAddress(host, port), 10000);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+        } catch (IOException e)
+        {
+            try
+            {
+                socket.close();
+            } catch (IOException ignored)
+            {
+            }
+
+            return e;
+        }
+
+        LinkedBlockingQueue<Object> outbound = new LinkedBlockingQueue<>();
+
+        synchronized (held)
+        {
+            this.outbound = outbound;
+            this.socket = socket;
+            named = false;
+        }
+
+        framing = Protocol.Framing.TEXT;
+        offers = null;
+        negotiated = false;
+        awaitingName = false;
+        resuming = false;
+        sequence = -1;
+
+        // logs in again with the same name, unless another was asked for
+        if (username != null)
+            pendingName.compareAndSet(null, username);
+
+        if (leaving)
+        {
+            outbound.add(new Request(Protocol.NAME, "\0"));
+            outbound.add(END);
+        }
+
+        Thread writer = threadFactory.newThread(() -> write(socket, outbound));
+        writer.setName("chat-client-writer");
+        writer.start();
+
+        listener.connected(socket.getRemoteSocketAddress());
+
+        try
+        {
+            while (read())
+            {
+                // each frame or line is handled as it is read
+            }
+        } catch (IOException e)
+        {
+            // the connection is over either way
+        } finally
+        {
+            close();
+
+            synchronized (held)
+            {
+                named = false;
+            }
+
+            // wakes the writer if it is waiting for something to write
+            outbound.add(END);
+
+            if (inflater != null)
+            {
+                inflater.end();
+                inflater = null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Splits a text line into the same type and fields a binary frame carries, with chat bodies unescaped, so both
+     * framings are handled by {@link #receive(byte, String[])}.
+     */
+    private void receive(String line)
+    {
+        if (line.startsWith("MESSAGE["))
+        {
+            String[] message = parseMessage(line);
+
+            if (message != null)
+                receive(Protocol.MESSAGE, message);
+        } else if (line.startsWith("CHANNEL_MESSAGE["))
+        {
+            String[] message = parseChannelMessage(line);
+
+            if (message != null)
+                receive(Protocol.CHANNEL_MESSAGE, message);
+        } else if (!line.isEmpty())
+        {
+            int space = line.indexOf(' ');
+            byte type = Protocol.responseType(space < 0 ? line : line.substring(0, space));
+
+            if (type != 0)
+                receive(type, new String[]{space < 0 ? "" : line.substring(space + 1).trim()});
+        }
+    }
+
+    private void receive(byte type, String[] fields)
+    {
+        switch (type)
+        {
+            case Protocol.PING:
+                outbound.add(new Request(Protocol.PING, ""));
+                break;
+            case Protocol.SEQ:
+                try
+                {
+                    sequence = Long.parseLong(fields[0].trim());
+                } catch (NumberFormatException e)
+                {
+                    sequence = -1;
+                }
+                break;
+            case Protocol.MESSAGE:
+                // private messages are not kept in history, so they have no sequence number
+                if (sequence >= 0)
+                    received(DEFAULT_CHANNEL);
+
+                listener.message(fields[0], fields[1]);
+                break;
+            case Protocol.CHANNEL_MESSAGE:
+                if (sequence >= 0)
+                    received(fields[0]);
+
+                listener.channelMessage(fields[0], fields[1], fields[2]);
+                break;
+            case Protocol.SUBMIT_NAME:
+                if (offers == null)
+                    offers = " " + fields[0];
+
+                negotiate();
+                break;
+            case Protocol.COMPRESS_ACCEPTED:
+                if (fields[0].trim().equals(Compression.DEFLATE))
+                {
+                    inflater = Compression.newInflater();
+                    in = new DataInputStream(new InflaterInputStream(in, inflater, 8192));
+                }
+
+                negotiate();
+                break;
+            case Protocol.RESUME_ACCEPTED:
+                negotiate();
+                break;
+            case Protocol.RESUME_TOKEN:
+                resumeToken = fields[0].trim();
+                break;
+            case Protocol.FRAMING_ACCEPTED:
+                if (fields[0].trim().equals("binary"))
+                    framing = Protocol.Framing.BINARY;
+
+                negotiate();
+                break;
+            case Protocol.NAME_ACCEPTED:
+                nameAccepted(fields[0].trim());
+                break;
+            case Protocol.NAME_DENIED:
+                listener.nameDenied(fields[0]);
+                break;
+            case Protocol.JOINED:
+                if (channels.putIfAbsent(fields[0].trim(), -1L) == null)
+                    listener.joined(fields[0].trim());
+                break;
+            case Protocol.PARTED:
+                channels.remove(fields[0].trim());
+                listener.parted(fields[0].trim());
+                break;
+            case Protocol.CHANNEL_DENIED:
+                listener.channelDenied(fields[0]);
+                break;
+            case Protocol.SERVER_CLOSING:
+                listener.serverClosing();
+                break;
+            case Protocol.KICKED:
+                leaving = true;
+                listener.kicked(fields[0]);
+                break;
+            case Protocol.SEARCH_RESULTS:
+                String[] counts = fields[0].trim().split(" ");
+
+                try
+                {
+                    searchTotal = Integer.parseInt(counts[0]);
+                    searchPage = Integer.parseInt(counts[1]);
+                    searchRemaining = Integer.parseInt(counts[2]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+                {
+                    searchRemaining = 0;
+                }
+
+                searchHits = new ArrayList<>();
+                searchReceived();
+                break;
+            case Protocol.SEARCH_HIT:
+                // a hit carries the message in its text form, whichever framing is in use
+                String[] message = parseMessage(fields[0].trim());
+
+                if (searchHits != null && message != null)
+                {
+                    searchHits.add(message);
+                    searchRemaining--;
+                    searchReceived();
+                }
+                break;
+            case Protocol.PURGE:
+                int amount = -1;
+
+                try
+                {
+                    amount = Integer.parseInt(fields[0].trim());
+                } catch (NumberFormatException e)
+                {
+                    // clear everything
+                }
+
+                listener.purged(amount);
+                break;
+        }
+    }
+
+    private void nameAccepted(String name)
+    {
+        username = name;
+
+        if (!resuming && !channels.isEmpty())
+        {
+            channels.replaceAll((channel, next) -> -1L);
+            listener.historyReset();
+        }
+
+        synchronized (held)
+        {
+            named = true;
+
+            // the server puts everyone in the default channel, but the others have to be joined again
+            for (Map.Entry<String, Long> channel : channels.entrySet())
+                if (!channel.getKey().equals(DEFAULT_CHANNEL))
+                    outbound.add(new Request(Protocol.JOIN, channel.getKey() + (channel.getValue() >= 0 ? " " + channel.getValue() : "")));
+
+            outbound.addAll(held);
+            held.clear();
+        }
+
+        listener.nameAccepted(username);
+    }
+
+    /**
+     * Takes up whatever the server offered with its first SUBMIT_NAME one step at a time, compression first since it
+     * is negotiated in text, and only asks for a name once every offer has been answered. The switch is queued right
+     * after each request, since the server decodes everything after the request in the new mode.
+     */
+    private void negotiate()
+    {
+        if (!negotiated)
+        {
+            if (compression && offers.contains("COMPRESS=" + Compression.DEFLATE))
+            {
+                offers = offers.replace("COMPRESS=" + Compression.DEFLATE, "");
+                outbound.add("COMPRESS " + Compression.DEFLATE);
+                outbound.add(START_DEFLATE);
+                return;
+            }
+
+            int resume = offers.indexOf(" RESUME=");
+
+            if (resume >= 0)
+            {
+                int end = offers.indexOf(' ', resume + 1);
+                String epoch = offers.substring(resume + " RESUME=".length(), end < 0 ? offers.length() : end);
+                offers = offers.substring(0, resume) + (end < 0 ? "" : offers.substring(end));
+                resuming = epoch.equals(this.epoch);
+                this.epoch = epoch;
+
+                if (resuming)
+                    outbound.add("RESUME " + channels.getOrDefault(DEFAULT_CHANNEL, -1L) + (resumeToken != null ? " " + resumeToken : ""));
+                else
+                    outbound.add("RESUME");
+                return;
+            }
+
+            if (binaryFraming && offers.contains("FRAMING=binary"))
+            {
+                offers = offers.replace("FRAMING=binary", "");
+                outbound.add("FRAMING binary");
+                outbound.add(START_BINARY);
+                return;
+            }
+
+            negotiated = true;
+        }
+
+        awaitingName = true;
+
+        if (pendingName.get() != null)
+            submitPendingName();
+        else
+            listener.nameRequested();
+    }
+
+    /**
+     * Reads and handles the next frame or line from the server. Binary frames go to the listener straight from their
+     * fields, without a detour through the text form.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean read() throws IOException
+    {
+        if (framing == Protocol.Framing.BINARY)
+        {
+            int length;
+
+            try
+            {
+                length = in.readInt();
+            } catch (EOFException e)
+            {
+                return false;
+            }
+
+            if (length < 1 || length > Protocol.MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length " + length);
+
+            byte type = in.readByte();
+            byte[] payload = new byte[length - 1];
+            in.readFully(payload);
+
+            String[] fields = Protocol.decode(type, ByteBuffer.wrap(payload));
+
+            if (fields != null)
+                receive(type, fields);
+
+            return true;
+        }
+
+        String line = readLine();
+
+        if (line == null)
+            return false;
+
+        receive(line);
+        return true;
+    }
+
+    /**
+     * Reads the next newline delimited line in text framing.
+     *
+     * @return null at the end of the stream.
+     */
+    private String readLine() throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+
+        while ((b = in.read()) != '\n')
+        {
+            if (b < 0)
+                return line.size() > 0 ? line.toString("UTF-8") : null;
+
+            if (b != '\r')
+                line.write(b);
+        }
+
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Writes queued lines until the connection ends, flushing only when the queue runs dry so lines queued together
+     * go out together.
+     */
+    private void write(Socket socket, LinkedBlockingQueue<Object> outbound)
+    {
+        Deflater deflater = null;
+        Protocol.Framing framing = Protocol.Framing.TEXT;
+
+        try
+        {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+
+            while (true)
+            {
+                Object next = outbound.poll();
+
+                if (next == null)
+                {
+                    out.flush();
+                    next = outbound.take();
+                }
+
+                if (next == END)
+                {
+                    out.flush();
+                    socket.shutdownOutput();
+                    break;
+                } else if (next == START_DEFLATE)
+                {
+                    out.flush();
+                    deflater = Compression.newDeflater(Deflater.DEFAULT_COMPRESSION);
+                    out = new DeflaterOutputStream(out, deflater, 8192, true);
+                } else if (next == START_BINARY)
+                {
+                    framing = Protocol.Framing.BINARY;
+                } else if (next instanceof Request && framing == Protocol.Framing.BINARY)
+                {
+                    Request request = (Request) next;
+                    ByteBuffer frame = Protocol.encode(request.type, request.fields);
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                } else
+                {
+                    String line = next instanceof Request ? Protocol.toText(((Request) next).type, ((Request) next).fields) : (String) next;
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException | InterruptedException e)
+        {
+            // the reader notices the broken connection
+        } finally
+        {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Notes that the message just received, whose sequence number came in the line before it, was seen.
+     */
+    private void received(String channel)
+    {
+        long sequence = this.sequence;
+        this.sequence = -1;
+        channels.computeIfPresent(channel, (name, next) -> Math.max(next, sequence + 1));
+    }
+
+    /**
+     * Reports the search results once every hit announced by SEARCH_RESULTS has arrived.
+     */
+    private void searchReceived()
+    {
+        if (searchRemaining > 0)
+            return;
+
+        List<String[]> hits = searchHits;
+        searchHits = null;
+        listener.searchResults(searchTotal, searchPage, hits);
+    }
+
+    /**
+     * Splits a {@code MESSAGE[from]body} line into the sender and the unescaped body. Names cannot contain ']', so
+     * the first one ends the sender and the body may contain any number of them.
+     *
+     * @return null if the line is not a message.
+     */
+    static String[] parseMessage(String line)
+    {
+        int end = line.indexOf(']');
+
+        if (!line.startsWith("MESSAGE[") || end < 0)
+            return null;
+
+        return new String[]{line.substring("MESSAGE[".length(), end), Protocol.unescape(line.substring(end + 1))};
+    }
+
+    /**
+     * Splits a {@code CHANNEL_MESSAGE[channel][from]body} line into the channel, the sender and the unescaped body.
+     *
+     * @return null if the line is not a channel message.
+     */
+    static String[] parseChannelMessage(String line)
+    {
+        int channelEnd = line.indexOf(']');
+        int fromEnd = channelEnd < 0 ? -1 : line.indexOf(']', channelEnd + 1);
+
+        if (!line.startsWith("CHANNEL_MESSAGE[") || fromEnd < 0)
+            return null;
+
+        return new String[]{line.substring("CHANNEL_MESSAGE[".length(), channelEnd), line.substring(channelEnd + 2, fromEnd), Protocol.unescape(line.substring(fromEnd + 1))};
+    }
+
+    /**
+     * A request made once connected, kept as its fields until the writer knows which framing to encode it in, so
+     * that what the user typed is never read back as a command. Handshake lines, which are always text, are queued
+     * as plain strings.
+     */
+    private static class Request
+    {
+        private final byte type;
+        private final String[] fields;
+
+        private Request(byte type, String... fields)
+        {
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+}
@@ -1,43 +1,65 @@
 package main;
 
 import javax.swing.*;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.DefaultStyledDocument;
-import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * The Swing chat client.
+ * <p>
+ * Events from the connection arrive on its reader thread and are queued, then applied on the event dispatch thread
+ * in batches of everything that arrived since the last one, at most once per frame. A history replay of thousands of
+ * messages is then a handful of batches, each laid out and painted once.
+ *
  * @author Kelan
  */
 public class Client
 {
+    /** Shortest time between two batches of updates. */
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
     private final JFrame frame;
     private JPanel contentPanel;
-    private JPanel messagePanel;
+    private MessageView messageView;
     private JPanel inputPanel;
     private JPanel connectionPanel;
-    private JScrollPane scrollMessagePanel;
+    private JScrollPane scrollMessageView;
     private JScrollPane scrollInputField;
     private JTextArea inputField;
     private JButton sendButton;
     private JButton connectButton;
     private JLabel connectionDetails;
 
-    private BufferedReader in;
-    private PrintWriter out;
+    private volatile ChatClient connection;
     private String username;
-    private Socket socket;
-    private int lastMessageHeight;
-
-    public Client()
+    private final int scrollback;
+    private String currentChannel = ChatClient.DEFAULT_CHANNEL;
+    /** Shown instead of "Disconnected" while the connection is being retried. */
+    private String reconnectStatus;
+    private final Set<String> channels = new LinkedHashSet<>();
+
+    /** Updates from the reader thread waiting for the event dispatch thread. */
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer frameTimer;
+    private long lastFlush;
+    private boolean detailsChanged;
+
+    public Client(int scrollback)
     {
+        this.scrollback = scrollback;
+        this.frameTimer = new Timer(0, e -> flushUpdates());
+        this.frameTimer.setRepeats(false);
+
         try
         {
             String lookAndFeel = UIManager.getSystemLookAndFeelClassName();
@@ -59,182 +81,263 @@ public class Client
             @Override
             public void windowClosing(WindowEvent e)
             {
-                if (socket != null && !socket.isClosed())
-                    out.println("DISCONNECT");
-
-                socket = null;
+                disconnect();
             }
         });
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> out.println("DISCONNECT")));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::disconnect));
     }
 
     private void createConnection()
     {
-        new Thread(() -> {
-            if (socket != null && !socket.isClosed())
-                out.println("DISCONNECT");
+        disconnect();
+
+        String[] address = getAddress();
+
+        if (address == null)
+            return;
+
+        ChatClient connection = new ChatClient(address[0], Integer.parseInt(address[1]), new ChatClient.Listener()
+        {
+            @Override
+            public void connected(SocketAddress address)
+            {
+                post(() -> {
+                    reconnectStatus = null;
+                    updateConnectionDetails();
+                });
+            }
+
+            @Override
+            public void connectFailed(IOException e)
+            {
+                post(() -> {
+                    JOptionPane.showMessageDialog(frame, "Failed to connect to remote host\n" + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    createConnection();
+                });
+            }
+
+            @Override
+            public void nameRequested()
+            {
+                post(() -> {
+                    String name = getUsername();
+
+                    if (name.equals("\0"))
+                        disconnect();
+                    else
+                        Client.this.connection.login(name);
+                });
+            }
+
+            @Override
+            public void nameAccepted(String name)
+            {
+                post(() -> {
+                    username = name;
+                    messageView.scrollToBottom();
+                    updateConnectionDetails();
+                });
+            }
+
+            @Override
+            public void nameDenied(String reason)
+            {
+                post(() -> JOptionPane.showMessageDialog(frame, "Invalid username" + (!reason.isEmpty() ? "\n" + reason : ""), "Error", JOptionPane.ERROR_MESSAGE));
+            }
+
+            @Override
+            public void message(String from, String body)
+            {
+                receiveMessage(from, body);
+            }
+
+            @Override
+            public void channelMessage(String channel, String from, String body)
+            {
+                receiveMessage(from + " (" + channel + ")", body);
+            }
 
-            socket = getConnection();
+            @Override
+            public void joined(String channel)
+            {
+                post(() -> {
+                    channels.add(channel);
+                    currentChannel = channel;
+                    updateConnectionDetails();
+                });
+            }
+
+            @Override
+            public void parted(String channel)
+            {
+                post(() -> {
+                    channels.remove(channel);
 
-            if (socket == null)
-                return;
+                    if (channel.equals(currentChannel))
+                        currentChannel = channels.contains(ChatClient.DEFAULT_CHANNEL) || channels.isEmpty() ? ChatClient.DEFAULT_CHANNEL : channels.iterator().next();
 
-            try
+                    messageView.append("SERVER", "You have left " + channel);
+                    updateConnectionDetails();
+                });
+            }
+
+            @Override
+            public void channelDenied(String reason)
+            {
+                receiveMessage("SERVER", reason);
+            }
+
+            @Override
+            public void purged(int amount)
             {
-                socket.setSoTimeout(30000);
-            } catch (SocketException e)
+                post(messageView::clear);
+            }
+
+            @Override
+            public void searchResults(int total, int page, List<String[]> hits)
             {
-                e.printStackTrace();
+                post(() -> {
+                    messageView.append("SERVER", total + " matching messages" + (total > hits.size() ? ", newest " + hits.size() + " shown" : ""));
+
+                    for (int i = hits.size() - 1; i >= 0; i--)
+                        messageView.append(hits.get(i)[0] + " (search)", hits.get(i)[1]);
+                });
             }
 
-            try
+            @Override
+            public void kicked(String reason)
             {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                out = new PrintWriter(socket.getOutputStream(), true);
-            } catch (IOException e)
+                post(() -> JOptionPane.showMessageDialog(frame, "You have been kicked" + (!reason.isEmpty() ? "\n" + reason : ""), "Kicked", JOptionPane.INFORMATION_MESSAGE));
+            }
+
+            @Override
+            public void reconnecting(int attempt, long delayMillis)
             {
-                JOptionPane.showMessageDialog(frame, "Failed to create IO buffers\n" + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                e.printStackTrace();
+                post(() -> {
+                    reconnectStatus = "Connection lost, reconnecting" + (attempt > 1 ? " (attempt " + attempt + ")" : "") + "...";
+                    updateConnectionDetails();
+                });
             }
 
-            while (true)
+            @Override
+            public void historyReset()
             {
-                if (socket == null || socket.isClosed())
-                    break;
-
-                try
-                {
-                    String line = in.readLine();
-
-                    if (line == null || line.isEmpty())
-                        continue;
-
-                    if (line.startsWith("PING"))
-                    {
-                        System.out.println("Pinged by server");
-                        out.println("PING"); //ping the server back.
-                    }
-
-                    if (line.startsWith("SUBMIT_NAME"))
-                    {
-                        String username = getUsername();
-                        out.println(username);
-                        if (username == null || username.equals("\0"))
-                            socket = null;
-                    }
-
-                    if (line.startsWith("NAME_ACCEPTED"))
-                    {
-                        username = line.substring("NAME_ACCEPTED".length() + 1);
-                        scrollMessagePanel.getVerticalScrollBar().setValue(scrollMessagePanel.getVerticalScrollBar().getMaximum());
-                    }
-
-                    if (line.startsWith("NAME_DENIED"))
-                    {
-                        String reason = line.substring("NAME_DENIED".length() + 1).trim();
-                        JOptionPane.showMessageDialog(frame, "Invalid username" + (!reason.isEmpty() ? "\n" + reason : ""), "Error", JOptionPane.ERROR_MESSAGE);
-                    }
-
-                    if (line.startsWith("MESSAGE"))
-                    {
-                        receiveMessage(line);
-                    }
-
-                    if (line.startsWith("SERVER_CLOSING"))
-                    {
-                        socket = null;
-                    }
-
-                    if (line.startsWith("KICKED"))
-                    {
-                        String message = null;
-
-                        if (line.trim().length() > "KICKED".length())
-                            message = line.substring("KICKED".length() + 1);
-
-                        socket = null;
-                        JOptionPane.showMessageDialog(frame, "You have been kicked" + (message != null ? "\n" + message : ""), "Kicked", JOptionPane.INFORMATION_MESSAGE);
-                    }
-
-                    if (line.startsWith("PURGE"))
-                    {
-                        int amount = -1;
-
-                        try
-                        {
-                            amount = Integer.parseInt(line.substring("PURGE".length() + 1).trim());
-                        } catch (Exception e)
-                        {
-                        }
-
-                        messagePanel.removeAll();
-                    }
-
-                    Thread.sleep(8);
-
-                    connectionDetails.setText(socket != null ? "Connected to " + socket.getRemoteSocketAddress() + " as " + username : "Disconnected");
-                } catch (IOException | InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
+                post(messageView::clear);
             }
 
-            if (socket != null && !socket.isClosed())
+            @Override
+            public void disconnected()
             {
-                try
-                {
-                    socket.close();
-                    in.close();
-                    out.close();
-                    socket = null;
-                    in = null;
-                    out = null;
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+                post(() -> {
+                    reconnectStatus = null;
+                    messageView.clear();
+                    channels.clear();
+                    currentChannel = ChatClient.DEFAULT_CHANNEL;
+                    username = null;
+                    updateConnectionDetails();
+                });
             }
+        }).setReconnect(true);
 
-            messagePanel.removeAll();
-            messagePanel.revalidate();
-            messagePanel.repaint();
+        this.connection = connection;
+        connection.connect();
+    }
+
+    private void disconnect()
+    {
+        ChatClient connection = this.connection;
 
-        }).start();
+        // also stops one that is waiting to reconnect
+        if (connection != null)
+            connection.disconnect();
     }
 
-    private Socket getConnection()
+    private boolean isConnected()
     {
-        String address = JOptionPane.showInputDialog(frame, "Enter IP Address of the Server:", "Connect", JOptionPane.QUESTION_MESSAGE);
+        ChatClient connection = this.connection;
+        return connection != null && connection.isConnected();
+    }
 
-        if (address == null)
-            return null;
+    /**
+     * Marks the connection details as changed. They are redrawn once, at the end of the current batch.
+     */
+    private void updateConnectionDetails()
+    {
+        detailsChanged = true;
+    }
+
+    /**
+     * Queues an update to be applied on the event dispatch thread with the next batch. Called from the reader thread.
+     */
+    private void post(Runnable update)
+    {
+        updates.add(update);
+
+        if (flushScheduled.compareAndSet(false, true))
+            SwingUtilities.invokeLater(this::scheduleFlush);
+    }
 
-        if (!Utils.validateIPv4(address, true))
+    /**
+     * Applies the queued updates now, or when the current frame is over if a batch was already applied in it.
+     */
+    private void scheduleFlush()
+    {
+        long wait = lastFlush + FRAME_NANOS - System.nanoTime();
+
+        if (wait <= 0)
         {
-            JOptionPane.showMessageDialog(frame, "Invalid IP address", "Error", JOptionPane.ERROR_MESSAGE);
-            return getConnection();
+            flushUpdates();
+        } else
+        {
+            frameTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            frameTimer.restart();
         }
+    }
+
+    private void flushUpdates()
+    {
+        lastFlush = System.nanoTime();
+        flushScheduled.set(false);
+
+        Runnable update;
+
+        while ((update = updates.poll()) != null)
+            update.run();
+
+        if (detailsChanged)
+            showConnectionDetails();
+    }
+
+    private void showConnectionDetails()
+    {
+        ChatClient connection = this.connection;
+        detailsChanged = false;
+        connectionDetails.setText(isConnected() ? "Connected to " + connection.getRemoteAddress() + " as " + username + " in " + currentChannel : reconnectStatus != null ? reconnectStatus : "Disconnected");
+        connectButton.repaint();
+    }
+
+    /**
+     * Asks for the server's address until a valid one is given.
+     *
+     * @return the host and port, or null if cancelled.
+     */
+    private String[] getAddress()
+    {
+        String address = JOptionPane.showInputDialog(frame, "Enter IP Address of the Server:", "Connect", JOptionPane.QUESTION_MESSAGE);
+
+        if (address == null)
+            return null;
 
         String[] comps = address.split(":");
 
-        if (comps.length != 2)
+        if (!Utils.validateIPv4(address, true) || comps.length != 2)
         {
             JOptionPane.showMessageDialog(frame, "Invalid IP address", "Error", JOptionPane.ERROR_MESSAGE);
-            return getConnection();
+            return getAddress();
         }
 
-        String host = comps[0].trim();
-        int port = Integer.parseInt(comps[1].trim());
-
-        try
-        {
-            return new Socket(host, port);
-        } catch (IOException e)
-        {
-            JOptionPane.showMessageDialog(frame, "Failed to connect to remote host\nConnection refused: connect", "Error", JOptionPane.ERROR_MESSAGE);
-            return getConnection();
-        }
+        return new String[]{comps[0].trim(), comps[1].trim()};
     }
 
     private String getUsername()
@@ -278,13 +381,10 @@ public class Client
             @Override
             public void actionPerformed(ActionEvent e)
             {
-                if (socket == null || socket.isClosed())
+                if (!isConnected())
                     createConnection();
                 else
-                {
-                    out.println("DISCONNECT");
-                    socket = null;
-                }
+                    disconnect();
             }
         };
 
@@ -295,16 +395,8 @@ public class Client
         contentPanel = new JPanel();
         contentPanel.setLayout(new BoxLayout(contentPanel, BoxLayout.PAGE_AXIS));
 
-        messagePanel = new JPanel()
-        {
-            @Override
-            public Dimension getPreferredSize()
-            {
-                return new Dimension(getParent().getWidth(), super.getMaximumSize().height);
-            }
-        };
-        messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.PAGE_AXIS));
-        scrollMessagePanel = new JScrollPane(messagePanel, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED)
+        messageView = new MessageView(scrollback);
+        scrollMessageView = new JScrollPane(messageView, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER)
         {
             @Override
             public Dimension getPreferredSize()
@@ -362,7 +454,7 @@ public class Client
             @Override
             public String getText()
             {
-                return socket == null || socket.isClosed() ? "Connect" : "Disconnect";
+                return !isConnected() ? "Connect" : "Disconnect";
             }
         };
         connectButton.setPreferredSize(new Dimension(buttonWidth, connectionPanelHeight));
@@ -382,100 +474,11 @@ public class Client
         bottomPanel.add(inputPanel);
         bottomPanel.add(connectionPanel);
 
-        contentPanel.add(scrollMessagePanel);
+        contentPanel.add(scrollMessageView);
         contentPanel.add(bottomPanel);
         return contentPanel;
     }
 
-    private StyledDocument createStyledMessage(String text)
-    {
-        try
-        {
-            DefaultStyledDocument document = new DefaultStyledDocument();
-            text = text.trim();
-            document.insertString(0, text, null);
-            return document;
-        } catch (BadLocationException e)
-        {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-
-    private void createMessagePanel(JPanel messageArea, StyledDocument document, String username)
-    {
-        if (document != null && document.getLength() > 0)
-        {
-            try
-            {
-                JTextPane tempPane = new JTextPane(document);
-                tempPane.setPreferredSize(new Dimension(1, 1));
-                tempPane.setSize(new Dimension(1, 1));
-                Rectangle bounds = tempPane.modelToView(document.getLength());
-
-                final JTextPane textPane = new JTextPane(document)
-                {
-                    @Override
-                    public Dimension getMinimumSize()
-                    {
-                        return new Dimension(getParent().getWidth(), bounds.height + bounds.y);
-                    }
-
-                    @Override
-                    public Dimension getMaximumSize()
-                    {
-                        return new Dimension(getParent().getWidth(), bounds.height + bounds.y);
-                    }
-
-                    @Override
-                    public boolean getScrollableTracksViewportWidth()
-                    {
-                        return true;
-                    }
-                };
-
-                JPanel panel = new JPanel()
-                {
-                    @Override
-                    public Dimension getMinimumSize()
-                    {
-                        return new Dimension(getParent().getWidth(), textPane.getPreferredScrollableViewportSize().height + getInsets().top + getInsets().bottom);
-                    }
-
-                    @Override
-                    public Dimension getMaximumSize()
-                    {
-                        return new Dimension(getParent().getWidth(), textPane.getPreferredScrollableViewportSize().height + getInsets().top + getInsets().bottom);
-                    }
-
-                    @Override
-                    public Dimension getSize()
-                    {
-                        return new Dimension(getParent().getWidth(), textPane.getPreferredScrollableViewportSize().height + getInsets().top + getInsets().bottom);
-                    }
-                };
-
-                textPane.setEditable(false);
-                textPane.setOpaque(false);
-
-                panel.setLayout(new BoxLayout(panel, BoxLayout.PAGE_AXIS));
-                panel.add(textPane);
-                panel.setBorder(BorderFactory.createTitledBorder(username));
-
-                messageArea.add(panel, new GridBagConstraints(0, 0, 1, 0, 1, 0, GridBagConstraints.NORTH, GridBagConstraints.HORIZONTAL, new Insets(0, 0, 0, 0), 0, 0));
-
-                messageArea.revalidate();
-                messageArea.repaint();
-
-                lastMessageHeight = panel.getHeight();
-            } catch (BadLocationException e)
-            {
-                e.printStackTrace();
-            }
-        }
-    }
-
     public void sendMessage(String message)
     {
         inputField.setEditable(true);
@@ -483,44 +486,60 @@ public class Client
         sendMessage();
     }
 
+    /**
+     * Sends the input field to the current channel. Input starting with a slash is a command instead:
+     * {@code /join #channel}, {@code /part [#channel]}, {@code /channel #channel} to switch between joined channels, or
+     * {@code /search words} to find past messages in the default channel.
+     */
     public void sendMessage()
     {
-        if (out != null && socket != null && !socket.isClosed())
-            out.println(inputField.getText().replace("\n", "\\n"));
-        else
-            JOptionPane.showMessageDialog(frame, "Cannot send message\nNot connected to a server", "Error", JOptionPane.ERROR_MESSAGE);
+        String text = inputField.getText();
+        ChatClient connection = this.connection;
 
-        inputField.setText("");
-    }
-
-    public void receiveMessage(String line)
-    {
-        if (line.startsWith("MESSAGE"))
+        if (isConnected())
         {
-            System.out.println(System.getProperty("line.separator"));
-            line = line.substring("MESSAGE".length() + 1).replace("\\n", "\n");
+            if (text.startsWith("/join "))
+                connection.join(text.substring("/join ".length()).trim());
+            else if (text.startsWith("/part"))
+                connection.part(text.trim().length() > "/part".length() ? text.substring("/part".length()).trim() : currentChannel);
+            else if (text.startsWith("/search "))
+                connection.search(text.substring("/search ".length()).trim(), 0);
+            else if (text.startsWith("/channel "))
+            {
+                String channel = text.substring("/channel ".length()).trim();
 
-            String[] comps = line.split("]");
-            receiveMessage(comps[0], comps[1]);
-        }
+                if (channels.contains(channel))
+                    currentChannel = channel;
+                else
+                    JOptionPane.showMessageDialog(frame, "Not a member of " + channel + "\nUse /join " + channel + " first", "Error", JOptionPane.ERROR_MESSAGE);
+
+                showConnectionDetails();
+            } else
+                connection.send(currentChannel, text);
+        } else
+            JOptionPane.showMessageDialog(frame, "Cannot send message\nNot connected to a server", "Error", JOptionPane.ERROR_MESSAGE);
+
+        inputField.setText("");
     }
 
+    /**
+     * Adds a message to the view with the next batch. May be called from any thread.
+     */
     public void receiveMessage(String username, String message)
     {
-        JScrollBar verticalScrollBar = scrollMessagePanel.getVerticalScrollBar();
-
-        boolean flag = verticalScrollBar.getValue() + verticalScrollBar.getModel().getExtent() >= verticalScrollBar.getMaximum() - 45;
-        createMessagePanel(messagePanel, createStyledMessage(message), username);
-
-        SwingUtilities.invokeLater(() -> {
-            if (flag)
-                verticalScrollBar.setValue(verticalScrollBar.getMaximum());
-        });
+        post(() -> messageView.append(username, message));
     }
 
+    /**
+     * Starts the client. Supported options:
+     * <pre>
+     *   --scrollback=N       number of messages kept in the scrollback, older ones are dropped
+     * </pre>
+     */
     public static void main(String[] args)
     {
-        Client client = new Client();
+        String scrollback = Utils.parseOptions(args).getOrDefault("scrollback", "10000");
+        Client client = new Client(Integer.parseInt(scrollback.trim()));
 
 //        client.sendMessage("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat. Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla pariatur. Excepteur sint occaecat cupidatat non proident, sunt in culpa qui officia deserunt mollit anim id est laborum.");
     }
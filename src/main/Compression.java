@@ -0,0 +1,54 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Settings shared by both ends of a deflate compressed connection.
+ * <p>
+ * The server advertises compression by adding {@code COMPRESS=deflate} to {@code SUBMIT_NAME}. A client that wants
+ * it replies {@code COMPRESS deflate} and compresses everything it sends after that line; the server answers
+ * {@code COMPRESS_ACCEPTED deflate} and compresses everything it sends after that line. Compression must be agreed
+ * before binary framing, since it is negotiated with text lines.
+ * <p>
+ * Each direction is a single raw deflate stream for the life of the connection, so every message is compressed
+ * with the previous ones as context, and both ends start from a preset dictionary of common protocol text so even
+ * the first few messages compress well. Writers sync flush whenever their queue runs dry, so messages never wait
+ * for more data, but messages queued together share a flush.
+ *
+ * @author Kelan
+ */
+public final class Compression
+{
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Protocol text that is likely to repeat, with the most common strings last, where deflate finds them with
+     * the shortest distances.
+     */
+    private static final byte[] DICTIONARY = (" - kicked due to inactivity connection timed out too slow to keep up" +
+            "NAME_DENIED Username is already in use SUBMIT_NAME FRAMING=binary NAME_ACCEPTED " +
+            "CHANNEL_DENIED  Not a member of this channel PURGE 0\n" +
+            "PARTED #JOINED #general\n has left # has joined #" +
+            "CHANNEL_MESSAGE[#general][SERVER] has disconnected - leaving\n" +
+            "MESSAGE[SERVER] has joined the server!\nPING\nMESSAGE[").getBytes(StandardCharsets.UTF_8);
+
+    private Compression()
+    {
+    }
+
+    public static Deflater newDeflater(int level)
+    {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    public static Inflater newInflater()
+    {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+}
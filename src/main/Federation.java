@@ -0,0 +1,663 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links several server processes into one chat network. Every node listens for other nodes on its own peer port
+ * and keeps a link open to each node in its peer list, reconnecting whenever a link drops. Links must form a full
+ * mesh, since messages are only relayed to direct neighbours: each node passes on what its own users send, and
+ * never forwards what it receives, so nothing is ever delivered twice. Each pair of nodes only needs one of the
+ * two to list the other; if both do, the link opened by the node with the lower name is kept.
+ * <p>
+ * Usernames are unique across the whole network. Every node tracks which node owns each name, and a name is only
+ * given to a local user once every connected node has agreed to it. Two nodes claiming the same name at once are
+ * settled in favour of the node with the lower name. Names owned by a node are forgotten when its link drops, and
+ * if a reconnecting node turns out to share a name with this one, the user on the higher named node is kicked.
+ * <p>
+ * Peer ports should only be reachable by other nodes, and listen on loopback unless told otherwise. Every node must
+ * also be given the same shared secret, which is never sent over a link. Each side opens with a random challenge, and
+ * answers the other's with an HMAC-SHA256 of the challenge and its own node name under the secret. Nothing else is
+ * accepted from a link until its answer checks out, so a stranger can neither inject messages nor hold or claim
+ * names to kick local users.
+ * <p>
+ * Links carry newline delimited text. Chat bodies are already escaped by the time they reach the relay, so they
+ * never contain a newline:
+ * <pre>
+ *   HELLO node challenge
+ *   AUTH mac                  HMAC of the other side's challenge and the sender's node name
+ *   HOLD name                 name is owned by the sender
+ *   CLAIM name                may the sender give out name?
+ *   CLAIM_OK name / CLAIM_TAKEN name
+ *   RELEASE name
+ *   BROADCAST from message
+ *   CHANNEL #channel from message
+ *   PRIVATE to from message
+ * </pre>
+ *
+ * @author Kelan
+ */
+public class Federation
+{
+    private static final long CLAIM_TIMEOUT = 2000000000L; // 2 seconds
+    private static final long RECONNECT_DELAY = 2000000000L; // 2 seconds
+    private static final int LINK_HIGH_WATER_MARK = 64 * 1024 * 1024;
+    private static final int LINK_LOW_WATER_MARK = 16 * 1024 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String node;
+    private final byte[] secret;
+    private final TimingWheel timers;
+    private final ServerSocket listener;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    /** Which node owns each name in use anywhere in the network, including names being claimed by this node. */
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private final Map<String, Claim> claims = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param node   the name of this node, which must be unique in the network.
+     * @param bind   the address the peer port listens on.
+     * @param port   the port other nodes connect to.
+     * @param secret the secret shared by every node in the network.
+     * @param peers  host:port addresses of the nodes to keep links open to.
+     */
+    public Federation(String node, InetAddress bind, int port, String secret, List<String> peers, TimingWheel timers) throws IOException
+    {
+        if (secret == null || secret.isEmpty())
+            throw new IllegalArgumentException("Linking servers requires a shared secret");
+
+        this.node = node;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.timers = timers;
+        this.listener = new ServerSocket(port, 50, bind);
+
+        Server.newThread(this::accept).start();
+
+        for (String peer : peers)
+            Server.newThread(() -> connect(peer)).start();
+
+        Log.info(Log.Category.FEDERATION, "listening for peers", "node", node, "port", port, "peers", peers);
+    }
+
+    public String node()
+    {
+        return node;
+    }
+
+    /**
+     * Claims a name for a local user, calling {@code callback} with the outcome once every connected node has
+     * answered, or with false if they have not all answered in time. The callback may run on any thread.
+     */
+    public void claim(String name, Consumer<Boolean> callback)
+    {
+        if (owners.putIfAbsent(name, node) != null)
+        {
+            callback.accept(false);
+            return;
+        }
+
+        Claim claim = new Claim(name, callback);
+        claims.put(name, claim);
+        claim.waiting.addAll(links.keySet());
+        claim.timeout = timers.schedule(() -> claim.complete(false), CLAIM_TIMEOUT, TimeUnit.NANOSECONDS);
+
+        for (String peer : claim.waiting)
+            send(peer, "CLAIM " + name);
+
+        claim.checkComplete();
+    }
+
+    /**
+     * Gives up a name owned by this node, once its user has left or its claim failed.
+     */
+    public void release(String name)
+    {
+        if (owners.remove(name, node))
+            sendToAll("RELEASE " + name);
+    }
+
+    public void relayBroadcast(String from, String message)
+    {
+        sendToAll("BROADCAST " + from + " " + message);
+    }
+
+    public void relayChannel(String channel, String from, String message)
+    {
+        sendToAll("CHANNEL " + channel + " " + from + " " + message);
+    }
+
+    /**
+     * Sends a private message to a user on another node.
+     *
+     * @return false if no connected node owns the name.
+     */
+    public boolean relayPrivate(String from, String to, String message)
+    {
+        String owner = owners.get(to);
+        return owner != null && !owner.equals(node) && send(owner, "PRIVATE " + to + " " + from + " " + message);
+    }
+
+    public int linkCount()
+    {
+        return links.size();
+    }
+
+    public Set<String> linkedNodes()
+    {
+        return links.keySet();
+    }
+
+    /**
+     * Number of names owned by other nodes.
+     */
+    public int remoteUsers()
+    {
+        int count = 0;
+
+        for (String owner : owners.values())
+            if (!owner.equals(node))
+                count++;
+
+        return count;
+    }
+
+    public void close()
+    {
+        running = false;
+
+        try
+        {
+            listener.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        for (Link link : links.values())
+            link.close();
+    }
+
+    private void accept()
+    {
+        while (running)
+        {
+            try
+            {
+                Socket socket = listener.accept();
+                Server.newThread(new Link(socket, false)::run).start();
+            } catch (IOException e)
+            {
+                if (running)
+                    Log.error(Log.Category.FEDERATION, "failed to accept peer", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps a link open to one peer for as long as the server runs.
+     */
+    private void connect(String address)
+    {
+        int split = address.lastIndexOf(':');
+
+        if (split < 0)
+        {
+            Log.error(Log.Category.FEDERATION, "invalid peer address, expected host:port", "peer", address);
+            return;
+        }
+
+        InetSocketAddress remote = new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split + 1).trim()));
+
+        while (running)
+        {
+            try
+            {
+                Socket socket = new Socket();
+                socket.connect(remote, 2000);
+                new Link(socket, true).run();
+            } catch (IOException e)
+            {
+                Log.debug(Log.Category.FEDERATION, "failed to connect to peer", "peer", address, "error", e.getMessage());
+            }
+
+            if (running)
+                LockSupport.parkNanos(this, RECONNECT_DELAY);
+        }
+    }
+
+    private boolean send(String peer, String line)
+    {
+        Link link = links.get(peer);
+        return link != null && link.send(line);
+    }
+
+    private void sendToAll(String line)
+    {
+        for (Link link : links.values())
+            link.send(line);
+    }
+
+    private void linkUp(Link link)
+    {
+        for (Map.Entry<String, String> owner : owners.entrySet())
+            if (owner.getValue().equals(node))
+                link.send("HOLD " + owner.getKey());
+
+        Log.info(Log.Category.FEDERATION, "link up", "peer", link.peer, "remote", link.socket.getRemoteSocketAddress());
+    }
+
+    private void linkDown(Link link)
+    {
+        if (link.peer == null || !links.remove(link.peer, link))
+            return;
+
+        owners.values().removeIf(link.peer::equals);
+
+        // the node can no longer object to any claim still waiting on it
+        for (Claim claim : claims.values())
+        {
+            claim.waiting.remove(link.peer);
+            claim.checkComplete();
+        }
+
+        Log.warn(Log.Category.FEDERATION, "link down", "peer", link.peer);
+    }
+
+    private void receive(Link link, String line)
+    {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String argument = space < 0 ? "" : line.substring(space + 1);
+
+        switch (command)
+        {
+            case "HOLD":
+                hold(link.peer, argument);
+                break;
+            case "CLAIM":
+                link.send((grant(link.peer, argument) ? "CLAIM_OK " : "CLAIM_TAKEN ") + argument);
+                break;
+            case "CLAIM_OK":
+            case "CLAIM_TAKEN":
+                Claim claim = claims.get(argument);
+
+                if (claim != null)
+                {
+                    if (command.equals("CLAIM_TAKEN"))
+                        claim.taken = true;
+
+                    claim.waiting.remove(link.peer);
+                    claim.checkComplete();
+                }
+                break;
+            case "RELEASE":
+                owners.remove(argument, link.peer);
+                break;
+            case "BROADCAST":
+            {
+                String[] fields = argument.split(" ", 2);
+
+                if (fields.length == 2)
+                    Server.deliverToAll(fields[0], fields[1], true);
+                break;
+            }
+            case "CHANNEL":
+            {
+                String[] fields = argument.split(" ", 3);
+
+                if (fields.length == 3)
+                    Server.deliverToChannel(fields[0], fields[1], fields[2], true);
+                break;
+            }
+            case "PRIVATE":
+            {
+                String[] fields = argument.split(" ", 3);
+
+                if (fields.length == 3)
+                    Server.deliverTo(fields[1], fields[0], fields[2], true);
+                break;
+            }
+            default:
+                Log.debug(Log.Category.FEDERATION, "unknown command", "peer", link.peer, "line", line);
+        }
+    }
+
+    /**
+     * Decides whether a peer may give out a name.
+     */
+    private boolean grant(String peer, String name)
+    {
+        while (true)
+        {
+            String owner = owners.putIfAbsent(name, peer);
+
+            if (owner == null || owner.equals(peer))
+                return true;
+
+            Claim claim = claims.get(name);
+
+            // both nodes are claiming the name at once, and the lower named one gets it
+            if (!owner.equals(node) || claim == null || peer.compareTo(node) > 0)
+                return false;
+
+            if (owners.replace(name, node, peer))
+            {
+                claim.taken = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records a name owned by a peer, kicking the local user if a reconnecting peer already gave it out too.
+     */
+    private void hold(String peer, String name)
+    {
+        String owner = owners.putIfAbsent(name, peer);
+
+        if (owner == null || owner.equals(peer) || !owner.equals(node) || peer.compareTo(node) > 0)
+            return;
+
+        if (!owners.replace(name, node, peer))
+            return;
+
+        Claim claim = claims.get(name);
+
+        if (claim != null)
+        {
+            claim.taken = true;
+            return;
+        }
+
+        Log.warn(Log.Category.FEDERATION, "name in use on another node", "user", name, "peer", peer);
+        Server.kick(name, "Your name is in use on another server");
+    }
+
+    private class Claim
+    {
+        private final String name;
+        private final Consumer<Boolean> callback;
+        private final Set<String> waiting = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile boolean taken;
+        private volatile TimingWheel.Timeout timeout;
+
+        private Claim(String name, Consumer<Boolean> callback)
+        {
+            this.name = name;
+            this.callback = callback;
+        }
+
+        private void checkComplete()
+        {
+            if (waiting.isEmpty() && timeout != null)
+                complete(!taken);
+        }
+
+        private void complete(boolean accepted)
+        {
+            if (!done.compareAndSet(false, true))
+                return;
+
+            claims.remove(name, this);
+            timeout.cancel();
+
+            if (!accepted)
+                release(name);
+
+            callback.accept(accepted);
+        }
+    }
+
+    /**
+     * A fresh random challenge for a link's HELLO, so an answer recorded from one link is no use on another.
+     */
+    private static String newChallenge()
+    {
+        byte[] challenge = new byte[16];
+        RANDOM.nextBytes(challenge);
+        return Base64.getEncoder().encodeToString(challenge);
+    }
+
+    /**
+     * The node called {@code name}'s answer to a challenge: an HMAC-SHA256 of both under the shared secret.
+     */
+    private String mac(String challenge, String name)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal((challenge + " " + name).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One open connection to another node. Like a client connection, it has a reader thread and a writer thread
+     * draining an outbound queue, so relaying to a slow node never holds up local users.
+     */
+    private class Link
+    {
+        private final Socket socket;
+        private final String initiator;
+        private final OutboundQueue outbound = new OutboundQueue(LINK_HIGH_WATER_MARK, LINK_LOW_WATER_MARK);
+        private volatile String peer;
+        /** The challenge sent to the peer, and the name it gave in its HELLO, until it has answered. */
+        private final String challenge = newChallenge();
+        private String claimedPeer;
+        private volatile Thread writer;
+        private volatile boolean closing;
+        private OutputStream out;
+
+        private Link(Socket socket, boolean initiated)
+        {
+            this.socket = socket;
+            this.initiator = initiated ? node : null;
+        }
+
+        private void run()
+        {
+            try
+            {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+
+                writer = Server.newThread(this::drain);
+                writer.start();
+
+                send("HELLO " + node + " " + challenge);
+
+                String line;
+
+                while (running && !closing && (line = in.readLine()) != null)
+                {
+                    if (peer == null)
+                    {
+                        if (!authenticate(line))
+                            break;
+                    } else
+                    {
+                        receive(this, line);
+                    }
+                }
+            } catch (SocketException e)
+            {
+                // closed by either side
+            } catch (IOException e)
+            {
+                Log.warn(Log.Category.FEDERATION, "link failed", "peer", peer, "error", e.getMessage());
+            } finally
+            {
+                close();
+                linkDown(this);
+            }
+        }
+
+        /**
+         * Handles the peer's HELLO, answering its challenge, and then its AUTH, registering the link if the answer
+         * to ours is right.
+         *
+         * @return false if the link should be dropped.
+         */
+        private boolean authenticate(String line)
+        {
+            if (claimedPeer == null)
+            {
+                String[] hello = line.split(" ");
+
+                if (hello.length != 3 || !hello[0].equals("HELLO"))
+                    return false;
+
+                claimedPeer = hello[1];
+                send("AUTH " + mac(hello[2], node));
+                return true;
+            }
+
+            byte[] expected = mac(challenge, claimedPeer).getBytes(StandardCharsets.US_ASCII);
+
+            if (!line.startsWith("AUTH ") || !MessageDigest.isEqual(expected, line.substring("AUTH ".length()).trim().getBytes(StandardCharsets.US_ASCII)))
+            {
+                Log.warn(Log.Category.FEDERATION, "peer failed to authenticate", "peer", claimedPeer, "remote", socket.getRemoteSocketAddress());
+                return false;
+            }
+
+            return register(claimedPeer);
+        }
+
+        /**
+         * Adds this link once the peer has introduced itself. If the two nodes linked to each other at the same
+         * time, both keep the link opened by the lower named node; a link opened by the same node as an existing one
+         * is a reconnect, and replaces it.
+         *
+         * @return false if this link is not needed.
+         */
+        private boolean register(String name)
+        {
+            if (name.isEmpty() || name.equals(node))
+            {
+                Log.error(Log.Category.FEDERATION, "peer has an invalid node name", "peer", name, "remote", socket.getRemoteSocketAddress());
+                return false;
+            }
+
+            peer = name;
+            String opener = initiator != null ? initiator : name;
+            Link existing = links.putIfAbsent(name, this);
+
+            if (existing != null)
+            {
+                String existingOpener = existing.initiator != null ? existing.initiator : name;
+
+                if (existingOpener.compareTo(opener) < 0 || !links.replace(name, existing, this))
+                {
+                    peer = null;
+                    return false;
+                }
+
+                existing.close();
+            }
+
+            linkUp(this);
+            return true;
+        }
+
+        private boolean send(String line)
+        {
+            if (closing)
+                return false;
+
+            if (!outbound.offer(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8))))
+            {
+                Log.error(Log.Category.FEDERATION, "peer is too far behind, dropping link", "peer", peer, "queued", outbound.queuedBytes());
+                close();
+                return false;
+            }
+
+            Thread writer = this.writer;
+
+            if (writer != null)
+                LockSupport.unpark(writer);
+
+            return true;
+        }
+
+        private void drain()
+        {
+            try
+            {
+                while (true)
+                {
+                    ByteBuffer buffer = outbound.peek();
+
+                    if (buffer == null)
+                    {
+                        out.flush();
+
+                        if (closing)
+                            break;
+
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    int length = buffer.remaining();
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                    outbound.consumed(length);
+                    outbound.remove();
+                }
+            } catch (IOException e)
+            {
+                // the reader will notice the broken socket
+            } finally
+            {
+                close();
+            }
+        }
+
+        private void close()
+        {
+            closing = true;
+
+            Thread writer = this.writer;
+
+            if (writer != null)
+                LockSupport.unpark(writer);
+
+            try
+            {
+                socket.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
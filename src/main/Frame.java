@@ -0,0 +1,126 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An outgoing protocol line encoded once and shared, read-only, by every connection it is sent to. The text
+ * encoding is made up front; the binary encoding is only made the first time a binary client needs it, so a server
+ * with no binary clients never pays for it.
+ * <p>
+ * A frame kept in a {@link MessageHistory} also has a sequence number. Clients that asked for sequence numbers get
+ * the frame preceded by a {@code SEQ n} line, made the first time one of them needs it.
+ *
+ * @author Kelan
+ */
+public final class Frame
+{
+    private final ByteBuffer text;
+    private volatile ByteBuffer binary;
+    private volatile long sequence = -1;
+    private volatile ByteBuffer sequencedText;
+    private volatile ByteBuffer sequencedBinary;
+
+    /**
+     * @param text a complete text line including the trailing newline.
+     */
+    public Frame(ByteBuffer text)
+    {
+        this.text = text.asReadOnlyBuffer();
+    }
+
+    public static Frame of(String line)
+    {
+        return new Frame(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public ByteBuffer text()
+    {
+        return text;
+    }
+
+    public ByteBuffer binary()
+    {
+        ByteBuffer binary = this.binary;
+
+        if (binary == null)
+        {
+            // racing threads may both encode, which is harmless since the results are identical
+            this.binary = binary = Protocol.toBinary(line()).asReadOnlyBuffer();
+        }
+
+        return binary;
+    }
+
+    /**
+     * The text line, without its trailing newline.
+     */
+    public String line()
+    {
+        ByteBuffer line = text.duplicate();
+        line.limit(Math.max(line.position(), line.limit() - 1));
+        return StandardCharsets.UTF_8.decode(line).toString();
+    }
+
+    public ByteBuffer encoded(Protocol.Framing framing)
+    {
+        return framing == Protocol.Framing.BINARY ? binary() : text;
+    }
+
+    /**
+     * The encoding for a client in the given framing, preceded by its sequence number if the client wants them and
+     * the frame has one.
+     */
+    public ByteBuffer encoded(Protocol.Framing framing, boolean sequenced)
+    {
+        long sequence = this.sequence;
+
+        if (!sequenced || sequence < 0)
+            return encoded(framing);
+
+        if (framing == Protocol.Framing.BINARY)
+        {
+            ByteBuffer sequencedBinary = this.sequencedBinary;
+
+            if (sequencedBinary == null)
+                this.sequencedBinary = sequencedBinary = concat(Protocol.encode(Protocol.SEQ, Long.toString(sequence)), binary());
+
+            return sequencedBinary;
+        }
+
+        ByteBuffer sequencedText = this.sequencedText;
+
+        if (sequencedText == null)
+            this.sequencedText = sequencedText = concat(ByteBuffer.wrap(("SEQ " + sequence + "\n").getBytes(StandardCharsets.US_ASCII)), text);
+
+        return sequencedText;
+    }
+
+    /**
+     * The sequence number given by the history this frame was added to, or -1 if it is not kept in one.
+     */
+    public long sequence()
+    {
+        return sequence;
+    }
+
+    void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Size of the text encoding, which is what history limits are measured in.
+     */
+    public int size()
+    {
+        return text.remaining();
+    }
+
+    private static ByteBuffer concat(ByteBuffer first, ByteBuffer second)
+    {
+        ByteBuffer both = ByteBuffer.allocate(first.remaining() + second.remaining());
+        both.put(first.duplicate()).put(second.duplicate()).flip();
+        return both.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,110 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of positive values in log-linear buckets about 6% wide, so percentiles stay accurate across many orders of
+ * magnitude in a fixed amount of memory. Recording is a single atomic increment, so any number of threads can record
+ * at once without a lock. Reads are weakly consistent while values are being recorded.
+ *
+ * @author Kelan
+ */
+public final class Histogram
+{
+    private static final int SUB_BUCKETS = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value)
+    {
+        value = Math.max(1, value);
+        counts.incrementAndGet(index(value));
+
+        long m;
+
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+        {
+            // retry
+        }
+    }
+
+    /**
+     * Adds every value recorded in {@code other} to this histogram.
+     */
+    public void add(Histogram other)
+    {
+        for (int i = 0; i < counts.length(); i++)
+        {
+            long count = other.counts.get(i);
+
+            if (count != 0)
+                counts.addAndGet(i, count);
+        }
+
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long count()
+    {
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+
+        return count;
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket holding the given percentile, or 0 if nothing has been recorded.
+     */
+    public long percentile(double percentile)
+    {
+        long count = count();
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+
+        if (count == 0)
+            return 0;
+
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+
+            if (seen >= rank)
+                return Math.min(bound(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    private static int index(long value)
+    {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        if (exponent < 4)
+            return (int) value;
+
+        return exponent * SUB_BUCKETS + (int) (value >>> (exponent - 4) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * The largest value that falls in a bucket.
+     */
+    private static long bound(int index)
+    {
+        if (index < 4 * SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1 << exponent - 4) - 1;
+    }
+}
@@ -0,0 +1,441 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk log of broadcast messages, split into numbered segment files. Each record is the encoded
+ * message frame prefixed with its length and a CRC32, so a torn write at the end of a segment is detected and
+ * ignored when reading back.
+ * <p>
+ * Appends are handed to a single writer thread which writes everything queued since its last pass in one go and
+ * then syncs according to the {@link FsyncPolicy}. On startup the newest segment is reopened and appended to, after
+ * cutting off any record torn by a crash, so restarts never start segments of their own that would push real
+ * history past the retention limit. Segments are read back by mapping them and copying each record onto the heap,
+ * so no file stays open and callers never hold on to a mapping, and old segments can always be deleted.
+ *
+ * @author Kelan
+ */
+public class HistoryLog
+{
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".log";
+
+    public enum FsyncPolicy
+    {
+        /** Sync after every batch written. */
+        BATCH,
+        /** Sync at most once per interval. */
+        INTERVAL,
+        /** Leave it to the operating system. */
+        NEVER
+    }
+
+    private static final ByteBuffer PURGE = ByteBuffer.allocate(0);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncInterval;
+
+    private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final Deque<Long> segments = new ArrayDeque<>();
+    private final Thread writer;
+    private FileChannel channel;
+    private long channelSize;
+    private long lastSync;
+    private boolean dirty;
+    private volatile boolean closed;
+
+    /**
+     * @param directory    where segment files are kept, created if missing.
+     * @param segmentBytes size after which the current segment is closed and a new one started.
+     * @param maxSegments  number of segments kept; older ones are deleted when a new one is started.
+     * @param fsyncInterval milliseconds between syncs for {@link FsyncPolicy#INTERVAL}.
+     */
+    public HistoryLog(File directory, long segmentBytes, int maxSegments, FsyncPolicy fsyncPolicy, long fsyncInterval) throws IOException
+    {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = fsyncInterval * 1000000L;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create history directory " + directory);
+
+        for (long index : listSegments())
+            segments.addLast(index);
+
+        if (segments.isEmpty())
+            roll();
+        else
+            reopen();
+
+        writer = new Thread(this::drain, "history-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an encoded frame to be written. Never blocks.
+     */
+    public void append(ByteBuffer frame)
+    {
+        if (closed)
+            return;
+
+        pending.add(frame.duplicate());
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Drops everything logged so far. Takes effect in order with appends, so messages sent after the purge are kept.
+     */
+    public void purge()
+    {
+        pending.add(PURGE);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Writes and syncs everything queued, then stops the writer. Waits at most {@code timeout} milliseconds.
+     */
+    public void close(long timeout)
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        pending.add(CLOSE);
+        LockSupport.unpark(writer);
+
+        try
+        {
+            writer.join(Math.max(1, timeout));
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads back the most recent {@code count} records, oldest first, as heap buffers. Safe to call while
+     * appending, since a record still being written fails its checksum and ends the read of its segment.
+     */
+    public List<ByteBuffer> readLast(int count) throws IOException
+    {
+        Deque<ByteBuffer> frames = new ArrayDeque<>();
+        Long[] indices;
+
+        synchronized (segments)
+        {
+            indices = segments.toArray(new Long[0]);
+        }
+
+        for (int i = indices.length - 1; i >= 0 && frames.size() < count; i--)
+        {
+            List<ByteBuffer> records = readSegment(segmentFile(indices[i]));
+
+            for (int j = records.size() - 1; j >= 0 && frames.size() < count; j--)
+                frames.addFirst(records.get(j));
+        }
+
+        return new ArrayList<>(frames);
+    }
+
+    private List<ByteBuffer> readSegment(File file) throws IOException
+    {
+        List<ByteBuffer> records = new ArrayList<>();
+        ByteBuffer contents = map(file);
+        CRC32 crc = new CRC32();
+
+        while (contents.remaining() >= HEADER_SIZE)
+        {
+            int length = contents.getInt();
+            int checksum = contents.getInt();
+
+            if (length < 0 || length > contents.remaining())
+                break;
+
+            // each record gets its own copy, so keeping a few does not keep the segment mapped
+            ByteBuffer record = ByteBuffer.allocate(length);
+            contents.get(record.array());
+
+            crc.reset();
+            crc.update(record.array(), 0, length);
+
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            records.add(record.asReadOnlyBuffer());
+        }
+
+        return records;
+    }
+
+    /**
+     * Length of the valid records at the start of a segment, which is where a torn write begins.
+     */
+    private static long validLength(File file) throws IOException
+    {
+        ByteBuffer contents = map(file);
+        CRC32 crc = new CRC32();
+
+        while (contents.remaining() >= HEADER_SIZE)
+        {
+            int start = contents.position();
+            int length = contents.getInt();
+            int checksum = contents.getInt();
+
+            if (length < 0 || length > contents.remaining())
+                return start;
+
+            ByteBuffer record = contents.slice();
+            record.limit(length);
+
+            crc.reset();
+            crc.update(record);
+
+            if ((int) crc.getValue() != checksum)
+                return start;
+
+            contents.position(contents.position() + length);
+        }
+
+        return contents.position();
+    }
+
+    /**
+     * Maps a segment as it is now. The mapping outlives the channel, so the file is closed straight away.
+     */
+    private static ByteBuffer map(File file) throws IOException
+    {
+        try (FileChannel segment = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            return segment.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(Integer.MAX_VALUE, segment.size()));
+        }
+    }
+
+    private void drain()
+    {
+        List<ByteBuffer> batch = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        // kept outside the try, as CLOSE has left the queue by the time a write can fail
+        boolean close = false;
+
+        while (true)
+        {
+            try
+            {
+                ByteBuffer frame;
+
+                while ((frame = pending.poll()) != null)
+                {
+                    if (frame == PURGE)
+                    {
+                        write(batch, crc);
+                        truncate();
+                    } else if (frame == CLOSE)
+                    {
+                        close = true;
+                        break;
+                    } else
+                    {
+                        batch.add(frame);
+                    }
+                }
+
+                write(batch, crc);
+
+                long now = System.nanoTime();
+
+                if (dirty && (close || fsyncPolicy == FsyncPolicy.BATCH || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncInterval)))
+                {
+                    channel.force(false);
+                    lastSync = now;
+                    dirty = false;
+                }
+
+                if (close)
+                {
+                    channel.close();
+                    return;
+                }
+
+                if (pending.isEmpty())
+                {
+                    if (dirty && fsyncPolicy == FsyncPolicy.INTERVAL)
+                        LockSupport.parkNanos(this, fsyncInterval);
+                    else
+                        LockSupport.park(this);
+                }
+            } catch (IOException e)
+            {
+                Log.error(Log.Category.HISTORY, "failed to write history log", "error", e.getMessage());
+                batch.clear();
+
+                // the batch is lost either way, but whoever is waiting in close() must not wait for nothing
+                if (close)
+                {
+                    try
+                    {
+                        channel.close();
+                    } catch (IOException ignored)
+                    {
+                        // stopping anyway
+                    }
+
+                    return;
+                }
+
+                LockSupport.parkNanos(this, 1000000000L);
+            }
+        }
+    }
+
+    private void write(List<ByteBuffer> batch, CRC32 crc) throws IOException
+    {
+        if (batch.isEmpty())
+            return;
+
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+
+        for (int i = 0; i < batch.size(); i++)
+        {
+            ByteBuffer frame = batch.get(i);
+
+            crc.reset();
+            crc.update(frame.duplicate());
+
+            buffers[i * 2] = ByteBuffer.allocate(HEADER_SIZE).putInt(frame.remaining()).putInt((int) crc.getValue());
+            buffers[i * 2].flip();
+            buffers[i * 2 + 1] = frame;
+        }
+
+        long length = 0;
+
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+
+        while (length > 0)
+            length -= channel.write(buffers);
+
+        channelSize = channel.size();
+        dirty = true;
+        batch.clear();
+
+        if (channelSize >= segmentBytes)
+            roll();
+    }
+
+    /**
+     * Carries on appending to the newest segment, cutting off anything after its last valid record, or starts a new
+     * one if it is already full.
+     */
+    private void reopen() throws IOException
+    {
+        File file = segmentFile(segments.peekLast());
+        long valid = validLength(file);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+        channelSize = valid;
+        dirty = false;
+
+        if (channelSize >= segmentBytes)
+            roll();
+    }
+
+    /**
+     * Closes the current segment, starts a new one, and deletes segments beyond the retention limit.
+     */
+    private void roll() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.force(false);
+            channel.close();
+        }
+
+        long index = segments.isEmpty() ? 0 : segments.peekLast() + 1;
+        channel = FileChannel.open(segmentFile(index).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channelSize = 0;
+        dirty = false;
+
+        synchronized (segments)
+        {
+            segments.addLast(index);
+
+            while (segments.size() > maxSegments)
+                Files.deleteIfExists(segmentFile(segments.removeFirst()).toPath());
+        }
+    }
+
+    /**
+     * Starts a new segment and deletes every older one.
+     */
+    private void truncate() throws IOException
+    {
+        roll();
+
+        synchronized (segments)
+        {
+            while (segments.size() > 1)
+                Files.deleteIfExists(segmentFile(segments.removeFirst()).toPath());
+        }
+    }
+
+    private List<Long> listSegments()
+    {
+        List<Long> indices = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+
+        if (files == null)
+            return indices;
+
+        for (File file : files)
+        {
+            try
+            {
+                indices.add(Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+            } catch (NumberFormatException e)
+            {
+                // not one of ours
+            }
+        }
+
+        indices.sort(null);
+        return indices;
+    }
+
+    private File segmentFile(long index)
+    {
+        return new File(directory, String.format("%016d%s", index, SUFFIX));
+    }
+
+    public static FsyncPolicy parseFsyncPolicy(String name)
+    {
+        for (FsyncPolicy policy : FsyncPolicy.values())
+            if (policy.name().equalsIgnoreCase(name))
+                return policy;
+
+        throw new IllegalArgumentException("Unknown fsync policy \"" + name + "\", expected one of " + Arrays.toString(FsyncPolicy.values()));
+    }
+}
@@ -0,0 +1,552 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless load tool that puts realistic traffic on a server. It opens any number of bot connections from a few
+ * selector threads, and each bot does the name handshake, answers pings, chats at a steady rate, and optionally
+ * leaves and comes back under a new name.
+ * <p>
+ * Every chat line a bot sends starts with the time it was sent, so whenever any bot receives it the end-to-end
+ * delivery latency is known. Bots and timestamps share one process and one clock, so no clock sync is needed.
+ *
+ * @author Kelan
+ */
+public class LoadGenerator
+{
+    private static String host = "localhost";
+    private static int port = 8088;
+    private static int botCount = 100;
+    private static int rampRate = 500;
+    private static double messageRate = 1.0;
+    private static int messageSize = 64;
+    private static int channelCount = 0;
+    private static long churnMean = 0L;
+    private static long rejoinDelay = 1000000000L;
+    private static long reportInterval = 5000000000L;
+    private static long duration = 60000000000L;
+
+    private static final AtomicLong connects = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong disconnects = new AtomicLong();
+    private static final AtomicLong kicks = new AtomicLong();
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong receivedBytes = new AtomicLong();
+    private static final AtomicLong ready = new AtomicLong();
+
+    private static volatile Histogram latency = new Histogram();
+    private static volatile Histogram handshakes = new Histogram();
+
+    private static volatile boolean running = true;
+
+    /**
+     * Runs a load test. Supported options:
+     * <pre>
+     *   --host=HOST          server to connect to
+     *   --port=8088          port the server listens on
+     *   --bots=N             number of concurrent bot connections
+     *   --ramp=N             new connections opened per second until every bot is connected
+     *   --rate=N             chat lines each bot sends per second, may be fractional
+     *   --size=BYTES         length of each chat line
+     *   --channels=N         spread bots over this many channels and chat there, instead of in #general
+     *   --churn=SECONDS      average time a bot stays before leaving and rejoining under a new name, 0 to stay
+     *   --rejoin-delay=MS    time a bot waits after leaving before it reconnects
+     *   --loops=N            number of selector threads
+     *   --report=SECONDS     time between progress reports
+     *   --duration=SECONDS   length of the run
+     * </pre>
+     * The server's flood limits apply to bots like any other client, so a high {@code --rate} needs a server
+     * started with matching {@code --flood-messages} and {@code --flood-bytes}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Map<String, String> options = Utils.parseOptions(args);
+        host = options.getOrDefault("host", host);
+        port = Integer.parseInt(options.getOrDefault("port", String.valueOf(port)));
+        botCount = Integer.parseInt(options.getOrDefault("bots", String.valueOf(botCount)));
+        rampRate = Math.max(1, Integer.parseInt(options.getOrDefault("ramp", String.valueOf(rampRate))));
+        messageRate = Double.parseDouble(options.getOrDefault("rate", String.valueOf(messageRate)));
+        messageSize = Math.max(24, Integer.parseInt(options.getOrDefault("size", String.valueOf(messageSize))));
+        channelCount = Integer.parseInt(options.getOrDefault("channels", String.valueOf(channelCount)));
+        churnMean = (long) (Double.parseDouble(options.getOrDefault("churn", "0")) * 1000000000L);
+        rejoinDelay = Long.parseLong(options.getOrDefault("rejoin-delay", String.valueOf(rejoinDelay / 1000000L))) * 1000000L;
+        reportInterval = Long.parseLong(options.getOrDefault("report", String.valueOf(reportInterval / 1000000000L))) * 1000000000L;
+        duration = Long.parseLong(options.getOrDefault("duration", String.valueOf(duration / 1000000000L))) * 1000000000L;
+        int loopCount = Integer.parseInt(options.getOrDefault("loops", String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        Loop[] loops = new Loop[Math.max(1, loopCount)];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new Loop(address);
+
+        for (int i = 0; i < botCount; i++)
+            loops[i % loops.length].bots.add(new Bot(i, start + i * 1000000000L / rampRate));
+
+        for (int i = 0; i < loops.length; i++)
+        {
+            Thread thread = new Thread(loops[i], "load-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.printf("Load test against %s: %d bots, %.2f msg/s each, %d byte lines, %s%n", address, botCount, messageRate, messageSize,
+                channelCount > 0 ? channelCount + " channels" : "#general");
+
+        Histogram totalLatency = new Histogram();
+        Histogram totalHandshakes = new Histogram();
+        long lastReport = start;
+        long lastSent = 0;
+        long lastReceived = 0;
+
+        while (System.nanoTime() - start < duration)
+        {
+            Thread.sleep(Math.min(reportInterval, duration - (System.nanoTime() - start)) / 1000000L);
+
+            long now = System.nanoTime();
+            Histogram intervalLatency = latency;
+            Histogram intervalHandshakes = handshakes;
+            latency = new Histogram();
+            handshakes = new Histogram();
+            totalLatency.add(intervalLatency);
+            totalHandshakes.add(intervalHandshakes);
+
+            double seconds = (now - lastReport) / 1e9;
+            long s = sent.get();
+            long r = received.get();
+
+            System.out.printf("[%5.1fs] bots %d/%d, sent %.0f/s, delivered %.0f/s, latency %s, handshake %s%n", (now - start) / 1e9, ready.get(), botCount,
+                    (s - lastSent) / seconds, (r - lastReceived) / seconds, summary(intervalLatency), summary(intervalHandshakes));
+
+            lastReport = now;
+            lastSent = s;
+            lastReceived = r;
+        }
+
+        running = false;
+
+        for (Loop loop : loops)
+            loop.selector.wakeup();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println();
+        System.out.printf("Ran for %.1fs%n", seconds);
+        System.out.printf("  connections  %d opened, %d failed, %d closed by the server, %d kicked%n", connects.get(), failures.get(), disconnects.get(), kicks.get());
+        System.out.printf("  throughput   %d sent (%.0f/s), %d delivered (%.0f/s), %.2f MB received%n", sent.get(), sent.get() / seconds, received.get(),
+                received.get() / seconds, receivedBytes.get() / 1e6);
+        System.out.printf("  latency      %s%n", percentiles(totalLatency));
+        System.out.printf("  handshake    %s%n", percentiles(totalHandshakes));
+    }
+
+    /**
+     * A selector thread running a share of the bots. Sending and reconnecting are driven by a 10ms tick.
+     */
+    private static class Loop implements Runnable
+    {
+        private static final long TICK = 10000000L;
+
+        private final Selector selector;
+        private final InetSocketAddress address;
+        private final List<Bot> bots = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+        private Loop(InetSocketAddress address) throws IOException
+        {
+            this.selector = Selector.open();
+            this.address = address;
+        }
+
+        @Override
+        public void run()
+        {
+            long nextTick = System.nanoTime();
+
+            while (running)
+            {
+                try
+                {
+                    long wait = nextTick - System.nanoTime();
+
+                    if (wait > 0)
+                        selector.select(Math.max(1, wait / 1000000L));
+                    else
+                        selector.selectNow();
+
+                    for (SelectionKey key : selector.selectedKeys())
+                        handle(key, (Bot) key.attachment());
+
+                    selector.selectedKeys().clear();
+
+                    long now = System.nanoTime();
+
+                    if (now - nextTick >= 0)
+                    {
+                        for (Bot bot : bots)
+                            tick(bot, now);
+
+                        nextTick = now + TICK;
+                    }
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+
+            for (Bot bot : bots)
+                bot.close();
+        }
+
+        private void handle(SelectionKey key, Bot bot)
+        {
+            try
+            {
+                if (!key.isValid())
+                    return;
+
+                if (key.isConnectable())
+                {
+                    bot.channel.finishConnect();
+                    connects.incrementAndGet();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+
+                if (key.isValid() && key.isWritable())
+                    bot.flush();
+
+                if (key.isValid() && key.isReadable())
+                    bot.read(readBuffer);
+            } catch (IOException e)
+            {
+                if (bot.state == State.CONNECTING)
+                    failures.incrementAndGet();
+                else
+                    disconnects.incrementAndGet();
+
+                bot.leave(System.nanoTime());
+            }
+        }
+
+        private void tick(Bot bot, long now)
+        {
+            try
+            {
+                if (bot.state == State.IDLE && now - bot.startAt >= 0)
+                    bot.connect(selector, address, now);
+                else if (bot.state == State.READY)
+                    bot.tick(now);
+            } catch (IOException e)
+            {
+                failures.incrementAndGet();
+                bot.leave(now);
+            }
+        }
+    }
+
+    private enum State
+    {
+        IDLE, CONNECTING, NAMING, READY
+    }
+
+    private static class Bot
+    {
+        private static final byte[] MESSAGE = "MESSAGE[".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CHANNEL_MESSAGE = "CHANNEL_MESSAGE[".getBytes(StandardCharsets.US_ASCII);
+
+        private final int id;
+        private int generation;
+        private State state = State.IDLE;
+        private long startAt;
+        private long connectedAt;
+        private long nextSend;
+        private long leaveAt;
+        private String channelName;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private byte[] line = new byte[256];
+        private int lineLength;
+
+        private Bot(int id, long startAt)
+        {
+            this.id = id;
+            this.startAt = startAt;
+        }
+
+        private void connect(Selector selector, InetSocketAddress address, long now) throws IOException
+        {
+            state = State.CONNECTING;
+            connectedAt = now;
+            lineLength = 0;
+            outbound.clear();
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+
+            if (channel.connect(address))
+            {
+                connects.incrementAndGet();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void tick(long now)
+        {
+            if (churnMean > 0 && now - leaveAt >= 0)
+            {
+                send("DISCONNECT");
+                leave(now);
+                return;
+            }
+
+            if (messageRate <= 0)
+                return;
+
+            // catch up at most one interval's worth, so a stalled bot does not then send a burst
+            long interval = (long) (1e9 / messageRate);
+
+            if (now - nextSend >= 0)
+            {
+                String body = message(now);
+                send(channelName != null ? "/MSG " + channelName + " " + body : body);
+                sent.incrementAndGet();
+                nextSend = Math.max(nextSend + interval, now - interval);
+            }
+        }
+
+        private void read(ByteBuffer buffer) throws IOException
+        {
+            buffer.clear();
+            int read = channel.read(buffer);
+
+            if (read < 0)
+                throw new IOException("Connection closed");
+
+            buffer.flip();
+            receivedBytes.addAndGet(read);
+            long now = System.nanoTime();
+
+            while (buffer.hasRemaining() && channel != null)
+            {
+                byte b = buffer.get();
+
+                if (b == '\n')
+                {
+                    receive(now);
+                    lineLength = 0;
+                    continue;
+                }
+
+                if (lineLength == line.length)
+                    line = Arrays.copyOf(line, line.length * 2);
+
+                line[lineLength++] = b;
+            }
+        }
+
+        /**
+         * Handles the line in {@link #line}. Chat lines, which are nearly all of the traffic, are handled from the
+         * raw bytes so the load tool itself stays cheap.
+         */
+        private void receive(long now)
+        {
+            if (startsWith(MESSAGE) || startsWith(CHANNEL_MESSAGE))
+            {
+                received.incrementAndGet();
+
+                // the body follows the sender's bracket, and starts with a timestamp if a bot sent it
+                for (int i = 0; i < lineLength - 2; i++)
+                {
+                    if (line[i] == ']' && line[i + 1] == '@')
+                    {
+                        boolean negative = line[i + 2] == '-';
+                        long sentAt = 0;
+
+                        for (int j = negative ? i + 3 : i + 2; j < lineLength && line[j] >= '0' && line[j] <= '9'; j++)
+                            sentAt = sentAt * 10 + line[j] - '0';
+
+                        latency.record(now - (negative ? -sentAt : sentAt));
+                        break;
+                    }
+                }
+
+                return;
+            }
+
+            String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+
+            if (text.equals("PING"))
+            {
+                send("PING");
+            } else if (text.startsWith("SUBMIT_NAME"))
+            {
+                state = State.NAMING;
+                send(name());
+            } else if (text.startsWith("NAME_ACCEPTED"))
+            {
+                state = State.READY;
+                ready.incrementAndGet();
+                handshakes.record(now - connectedAt);
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                nextSend = messageRate > 0 ? now + (long) (random.nextDouble() * 1e9 / messageRate) : Long.MAX_VALUE;
+
+                if (churnMean > 0)
+                    leaveAt = now + (long) (-Math.log(1 - random.nextDouble()) * churnMean);
+
+                if (channelCount > 0)
+                {
+                    channelName = "#load" + random.nextInt(channelCount);
+                    send("/JOIN " + channelName);
+                }
+            } else if (text.startsWith("NAME_DENIED"))
+            {
+                // the server asks again with SUBMIT_NAME, so the next name just has to differ
+                generation++;
+            } else if (text.startsWith("KICKED"))
+            {
+                kicks.incrementAndGet();
+            }
+        }
+
+        private boolean startsWith(byte[] prefix)
+        {
+            if (lineLength < prefix.length)
+                return false;
+
+            for (int i = 0; i < prefix.length; i++)
+                if (line[i] != prefix[i])
+                    return false;
+
+            return true;
+        }
+
+        private String name()
+        {
+            return generation == 0 ? "bot" + id : "bot" + id + "r" + generation;
+        }
+
+        /**
+         * A chat line of the configured size, starting with the send time.
+         */
+        private String message(long now)
+        {
+            StringBuilder builder = new StringBuilder(messageSize);
+            builder.append('@').append(now).append(' ');
+
+            while (builder.length() < messageSize)
+                builder.append((char) ('a' + builder.length() % 26));
+
+            return builder.toString();
+        }
+
+        private void send(String text)
+        {
+            if (channel == null)
+                return;
+
+            outbound.add(ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8)));
+
+            try
+            {
+                flush();
+            } catch (IOException e)
+            {
+                disconnects.incrementAndGet();
+                leave(System.nanoTime());
+            }
+        }
+
+        private void flush() throws IOException
+        {
+            ByteBuffer buffer;
+
+            while ((buffer = outbound.peek()) != null)
+            {
+                channel.write(buffer);
+
+                if (buffer.hasRemaining())
+                {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                outbound.remove();
+            }
+
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and schedules a reconnect under a new name.
+         */
+        private void leave(long now)
+        {
+            if (state == State.READY)
+                ready.decrementAndGet();
+
+            close();
+            state = State.IDLE;
+            channelName = null;
+            generation++;
+            startAt = now + rejoinDelay;
+        }
+
+        private void close()
+        {
+            if (channel == null)
+                return;
+
+            try
+            {
+                channel.close();
+            } catch (IOException ignored)
+            {
+            }
+
+            channel = null;
+        }
+    }
+
+    private static String summary(Histogram histogram)
+    {
+        if (histogram.count() == 0)
+            return "-";
+
+        return "p50 " + millis(histogram.percentile(50)) + " p99 " + millis(histogram.percentile(99));
+    }
+
+    private static String percentiles(Histogram histogram)
+    {
+        long count = histogram.count();
+
+        if (count == 0)
+            return "no samples";
+
+        return count + " samples, p50 " + millis(histogram.percentile(50)) + ", p90 " + millis(histogram.percentile(90)) + ", p99 " +
+                millis(histogram.percentile(99)) + ", p99.9 " + millis(histogram.percentile(99.9)) + ", max " + millis(histogram.max());
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,264 @@
+package main;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, levelled server log. Callers only claim a slot in a bounded lock-free ring buffer and store their
+ * arguments; formatting and console I/O happen on a single background thread. When the ring is full the entry is
+ * dropped and counted rather than making the caller wait, and the number of dropped entries is reported once the
+ * writer catches up.
+ * <p>
+ * Each {@link Category} has its own threshold, so for example chat lines can be switched off without losing
+ * connection events. Structured fields are passed as alternating names and values and are printed as
+ * {@code name=value} after the message.
+ *
+ * @author Kelan
+ */
+public final class Log
+{
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    public enum Category
+    {
+        SERVER, CONNECTION, HANDSHAKE, CHAT, HISTORY, ADMIN, FEDERATION;
+
+        private volatile Level level = Level.INFO;
+
+        public void setLevel(Level level)
+        {
+            this.level = level;
+        }
+
+        public boolean isEnabled(Level level)
+        {
+            return level.ordinal() >= this.level.ordinal() && level != Level.OFF;
+        }
+    }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Entry[] entries = new Entry[CAPACITY];
+    /** Per slot: the sequence number a producer may write into it, plus one once it is readable. */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile long head;
+    private static volatile boolean sleeping;
+    private static volatile boolean running = true;
+    private static final Thread writer;
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+        {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log()
+    {
+    }
+
+    public static void debug(Category category, String message, Object... fields)
+    {
+        log(Level.DEBUG, category, message, fields);
+    }
+
+    public static void info(Category category, String message, Object... fields)
+    {
+        log(Level.INFO, category, message, fields);
+    }
+
+    public static void warn(Category category, String message, Object... fields)
+    {
+        log(Level.WARN, category, message, fields);
+    }
+
+    public static void error(Category category, String message, Object... fields)
+    {
+        log(Level.ERROR, category, message, fields);
+    }
+
+    public static boolean isEnabled(Level level, Category category)
+    {
+        return category.isEnabled(level);
+    }
+
+    public static void log(Level level, Category category, String message, Object... fields)
+    {
+        if (!category.isEnabled(level))
+            return;
+
+        long sequence;
+
+        while (true)
+        {
+            sequence = tail.get();
+            long available = sequences.get((int) (sequence & MASK));
+
+            if (available < sequence)
+            {
+                // the writer has not consumed this slot since the last lap
+                dropped.incrementAndGet();
+                return;
+            }
+
+            if (available == sequence && tail.compareAndSet(sequence, sequence + 1))
+                break;
+        }
+
+        Entry entry = entries[(int) (sequence & MASK)];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.category = category;
+        entry.message = message;
+        entry.fields = fields;
+        sequences.set((int) (sequence & MASK), sequence + 1);
+
+        if (sleeping)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Applies options of the form {@code --log-level=LEVEL} and {@code --log-CATEGORY=LEVEL}, e.g.
+     * {@code --log-chat=off}.
+     */
+    public static void configure()
+    {
+        Level defaultLevel = parseLevel(Server.getOption("log-level", "info"), Level.INFO);
+
+        for (Category category : Category.values())
+            category.setLevel(parseLevel(Server.getOption("log-" + category.name().toLowerCase(Locale.ROOT), (String) null), defaultLevel));
+    }
+
+    private static Level parseLevel(String name, Level defaultLevel)
+    {
+        if (name == null)
+            return defaultLevel;
+
+        try
+        {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e)
+        {
+            System.err.println("Unknown log level \"" + name + "\", using " + defaultLevel);
+            return defaultLevel;
+        }
+    }
+
+    public static long dropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Waits up to {@code timeout} milliseconds for everything logged so far to be written, then stops the writer.
+     */
+    public static void shutdown(long timeout)
+    {
+        running = false;
+        LockSupport.unpark(writer);
+
+        try
+        {
+            writer.join(Math.max(1, timeout));
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drain()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder out = new StringBuilder(4096);
+        StringBuilder err = new StringBuilder(256);
+        long reportedDrops = 0;
+
+        while (true)
+        {
+            long sequence = head;
+
+            while (sequences.get((int) (sequence & MASK)) == sequence + 1)
+            {
+                Entry entry = entries[(int) (sequence & MASK)];
+                StringBuilder builder = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+
+                builder.append(format.format(new Date(entry.time))).append(' ');
+                builder.append(entry.level).append(entry.level.name().length() == 4 ? "  [" : " [");
+                builder.append(entry.category.name().toLowerCase(Locale.ROOT)).append("] ");
+                builder.append(entry.message);
+
+                Object[] fields = entry.fields;
+
+                for (int i = 0; fields != null && i + 1 < fields.length; i += 2)
+                    builder.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+
+                builder.append(System.lineSeparator());
+
+                entry.message = null;
+                entry.fields = null;
+                sequences.set((int) (sequence & MASK), sequence + CAPACITY);
+                head = ++sequence;
+
+                if (out.length() > 65536)
+                    flush(System.out, out);
+            }
+
+            long drops = dropped.get();
+
+            if (drops != reportedDrops)
+            {
+                err.append(format.format(new Date())).append(" WARN  [server] log buffer full, dropped=").append(drops - reportedDrops).append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+
+            flush(System.out, out);
+            flush(System.err, err);
+
+            if (!running && sequences.get((int) (head & MASK)) != head + 1)
+                return;
+
+            sleeping = true;
+
+            if (sequences.get((int) (head & MASK)) != head + 1)
+                LockSupport.parkNanos(Log.class, 100000000L);
+
+            sleeping = false;
+        }
+    }
+
+    private static void flush(PrintStream stream, StringBuilder builder)
+    {
+        if (builder.length() == 0)
+            return;
+
+        stream.print(builder);
+        stream.flush();
+        builder.setLength(0);
+    }
+
+    private static class Entry
+    {
+        private long time;
+        private Level level;
+        private Category category;
+        private String message;
+        private Object[] fields;
+    }
+}
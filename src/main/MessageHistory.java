@@ -0,0 +1,221 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-capacity ring of recent encoded messages, bounded both by message count and by total bytes. Appends from
+ * any number of threads are lock-free: each one claims the next sequence number and then replaces the older message
+ * in that number's slot. A writer delayed long enough to be lapped finds a newer message there and drops its own,
+ * which would have been overwritten by then anyway, so a slot never goes back to an older message. Readers take a
+ * weakly consistent snapshot, skipping slots that are being overwritten while they look at them.
+ * Memory use is flat for the life of the server no matter how long it runs.
+ * <p>
+ * Sequence numbers only ever increase, even across {@link #clear()}, so a client that remembers the last one it saw
+ * can ask for exactly the messages it missed with {@link #since(long)}.
+ *
+ * @author Kelan
+ */
+public class MessageHistory
+{
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final long maxBytes;
+
+    /** Sequence number the next message will get. */
+    private final AtomicLong head = new AtomicLong();
+    /** Lowest sequence number still retained once the byte limit is taken into account. */
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public MessageHistory(int capacity, long maxBytes)
+    {
+        this(capacity, maxBytes, 0);
+    }
+
+    /**
+     * @param firstSequence the sequence number given to the first message, so that histories which replace one
+     *                      another never reuse each other's numbers.
+     */
+    public MessageHistory(int capacity, long maxBytes, long firstSequence)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.maxBytes = maxBytes;
+        this.slots = new AtomicReferenceArray<>(this.capacity);
+        this.head.set(firstSequence);
+        this.tail.set(firstSequence);
+    }
+
+    /**
+     * Appends an encoded message, evicting the oldest ones if either limit is
+     * exceeded. The frame is given its sequence number before it is visible to readers.
+     *
+     * @return the sequence number given to the message.
+     */
+    public long add(Frame frame)
+    {
+        long sequence = head.getAndIncrement();
+        frame.setSequence(sequence);
+        Entry entry = new Entry(sequence, frame);
+
+        // counted before it is visible, so an evict that takes it out first can never push the total below zero
+        bytes.addAndGet(entry.frame.size());
+
+        // whoever takes an entry out of its slot, here or in evict, is the only one to subtract its size
+        int index = index(sequence);
+        Entry old;
+
+        do
+        {
+            old = slots.get(index);
+
+            if (old != null && old.sequence > sequence)
+            {
+                bytes.addAndGet(-entry.frame.size());
+                return sequence;
+            }
+        } while (!slots.compareAndSet(index, old, entry));
+
+        if (old != null)
+            bytes.addAndGet(-old.frame.size());
+
+        // evicted or cleared while this writer was delayed, by someone who found the slot still holding an older one
+        if (sequence < tail.get())
+            evict(sequence);
+
+        while (bytes.get() > maxBytes)
+        {
+            // everything older than a capacity ago has already been overwritten, so the tail skips straight past it
+            long observed = tail.get();
+            long t = Math.max(observed, sequence - capacity + 1);
+
+            if (t >= sequence)
+                break;
+
+            if (tail.compareAndSet(observed, t + 1))
+                evict(t);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * The retained messages, oldest first.
+     */
+    public List<Frame> snapshot()
+    {
+        return snapshot(capacity);
+    }
+
+    /**
+     * At most the {@code limit} most recent retained messages, oldest first.
+     */
+    public List<Frame> snapshot(int limit)
+    {
+        long h = head.get();
+        long t = Math.max(tail.get(), h - Math.min(capacity, Math.max(0, limit)));
+        List<Frame> frames = new ArrayList<>((int) (h - t));
+
+        for (long sequence = t; sequence < h; sequence++)
+        {
+            Entry entry = slots.get(index(sequence));
+
+            if (entry != null && entry.sequence == sequence)
+                frames.add(entry.frame);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Every retained message from {@code sequence} on, oldest first, for a client that has already seen everything
+     * before it.
+     *
+     * @return null if messages from {@code sequence} on are no longer all retained, or if the sequence number was
+     * never given out by this history, in which case the client has missed more than can be sent.
+     */
+    public List<Frame> since(long sequence)
+    {
+        long h = head.get();
+
+        if (sequence > h || sequence < Math.max(tail.get(), h - capacity))
+            return null;
+
+        List<Frame> frames = new ArrayList<>((int) (h - sequence));
+
+        for (long s = sequence; s < h; s++)
+        {
+            Entry entry = slots.get(index(s));
+
+            if (entry != null && entry.sequence == s)
+                frames.add(entry.frame);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Sequence number the next message will get.
+     */
+    public long nextSequence()
+    {
+        return head.get();
+    }
+
+    /**
+     * Drops every message added before this call.
+     */
+    public void clear()
+    {
+        long h = head.get();
+        long t = tail.get();
+
+        while (t < h && !tail.compareAndSet(t, h))
+            t = tail.get();
+
+        for (long sequence = Math.max(t, h - capacity); sequence < h; sequence++)
+            evict(sequence);
+    }
+
+    public int size()
+    {
+        long h = head.get();
+        return (int) (h - Math.max(tail.get(), h - capacity));
+    }
+
+    public long bytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Empties the slot of the given message, if it still holds that message rather than a newer one.
+     */
+    private void evict(long sequence)
+    {
+        int index = index(sequence);
+        Entry entry = slots.get(index);
+
+        if (entry != null && entry.sequence == sequence && slots.compareAndSet(index, entry, null))
+            bytes.addAndGet(-entry.frame.size());
+    }
+
+    private int index(long sequence)
+    {
+        return (int) (sequence % capacity);
+    }
+
+    private static class Entry
+    {
+        private final long sequence;
+        private final Frame frame;
+
+        private Entry(long sequence, Frame frame)
+        {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+}
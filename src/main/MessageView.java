@@ -0,0 +1,466 @@
+package main;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Map;
+
+/**
+ * A scrollback of chat messages that paints only the rows in view instead of holding a component per message.
+ * <p>
+ * Each message is word wrapped once, when it arrives or when the width changes, and its wrapped lines and height are
+ * cached. Messages are kept in a ring, with the top of every row as a running total, so adding a message costs the
+ * same however many are already kept, and finding the rows in view is a binary search. Once the scrollback limit is
+ * reached the oldest message is dropped for each new one.
+ * <p>
+ * Must only be used from the event dispatch thread, like any other Swing component.
+ *
+ * @author Kelan
+ */
+public class MessageView extends JComponent implements Scrollable
+{
+    private static final long serialVersionUID = 1L;
+    private static final int PADDING = 6;
+
+    private Font font;
+    private Font titleFont;
+    private FontMetrics metrics;
+    private FontMetrics titleMetrics;
+    private int lineHeight;
+    private int titleHeight;
+    private int wrapWidth = -1;
+
+    private Entry[] entries;
+    /** Top of each row, counted from the first message ever added, so that dropping old rows moves nothing. */
+    private long[] tops;
+    private int head;
+    private int count;
+    /** Top of the oldest kept row, which is drawn at zero. */
+    private long base;
+    /** Bottom of the newest row. */
+    private long end;
+
+    /** Whether changes have been made that the viewport has not caught up with yet. */
+    private boolean updatePending;
+    /** Whether the view was at the bottom before the pending changes. */
+    private boolean pinned;
+    /** Height of the rows dropped by the pending changes. */
+    private long dropped;
+
+    public MessageView(int scrollback)
+    {
+        entries = new Entry[Math.max(1, scrollback)];
+        tops = new long[entries.length];
+
+        Font font = UIManager.getFont("TextPane.font");
+        setFont(font != null ? font : new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setForeground(Color.BLACK);
+
+        addComponentListener(new ComponentAdapter()
+        {
+            @Override
+            public void componentResized(ComponentEvent e)
+            {
+                if (getWidth() != wrapWidth)
+                    rewrap();
+            }
+        });
+    }
+
+    @Override
+    public void setFont(Font font)
+    {
+        super.setFont(font);
+
+        if (font == null)
+            return;
+
+        this.font = font;
+        this.titleFont = font.deriveFont(Font.BOLD);
+        this.metrics = getFontMetrics(font);
+        this.titleMetrics = getFontMetrics(titleFont);
+        this.lineHeight = metrics.getHeight();
+        this.titleHeight = titleMetrics.getHeight();
+        rewrap();
+    }
+
+    public int getScrollback()
+    {
+        return entries.length;
+    }
+
+    /**
+     * Changes how many messages are kept, dropping the oldest if there are now too many.
+     */
+    public void setScrollback(int scrollback)
+    {
+        Entry[] kept = new Entry[Math.max(1, scrollback)];
+        int skip = Math.max(0, count - kept.length);
+
+        for (int i = skip; i < count; i++)
+            kept[i - skip] = entry(i);
+
+        entries = kept;
+        tops = new long[kept.length];
+        head = 0;
+        count = count - skip;
+        rewrap();
+    }
+
+    public int getMessageCount()
+    {
+        return count;
+    }
+
+    /**
+     * Adds a message at the bottom. If the view was scrolled to the bottom it stays there; otherwise it keeps
+     * showing the same messages.
+     * <p>
+     * The viewport is only brought up to date once all the changes made in the current event have been applied, so
+     * adding many messages at once costs a single layout.
+     */
+    public void append(String sender, String text)
+    {
+        beginUpdate();
+
+        Entry entry = new Entry(sender, text.trim());
+        layout(entry);
+
+        int index;
+
+        if (count == entries.length)
+        {
+            index = head;
+            head = (head + 1) % entries.length;
+            dropped += entries[index].height;
+            base += entries[index].height;
+        } else
+        {
+            index = (head + count) % entries.length;
+            count++;
+        }
+
+        entries[index] = entry;
+        tops[index] = end;
+        end += entry.height;
+    }
+
+    public void clear()
+    {
+        beginUpdate();
+
+        for (int i = 0; i < count; i++)
+            entries[(head + i) % entries.length] = null;
+
+        head = 0;
+        count = 0;
+        base = 0;
+        end = 0;
+        pinned = true;
+        dropped = 0;
+    }
+
+    public void scrollToBottom()
+    {
+        JViewport viewport = getViewport();
+
+        if (viewport != null)
+            viewport.setViewPosition(new Point(0, Math.max(0, height() - viewport.getHeight())));
+    }
+
+    @Override
+    public Dimension getPreferredSize()
+    {
+        return new Dimension(Math.max(1, getWidth()), height());
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        Rectangle clip = g.getClipBounds();
+
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        if (count == 0)
+            return;
+
+        Graphics2D g2 = (Graphics2D) g;
+        Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+
+        if (hints != null)
+            g2.addRenderingHints(hints);
+
+        Color titleColor = UIManager.getColor("TitledBorder.titleColor");
+        Color separator = UIManager.getColor("Separator.foreground");
+
+        for (int i = firstVisible(clip.y); i < count; i++)
+        {
+            Entry entry = entry(i);
+            int top = (int) (tops[(head + i) % entries.length] - base);
+
+            if (top > clip.y + clip.height)
+                break;
+
+            int y = top + PADDING;
+            g.setFont(titleFont);
+            g.setColor(titleColor != null ? titleColor : Color.DARK_GRAY);
+            g.drawString(entry.sender, PADDING, y + titleMetrics.getAscent());
+            y += titleHeight;
+
+            g.setFont(font);
+            g.setColor(getForeground());
+
+            for (int line = 0; line < entry.lines.length; line += 2)
+            {
+                g.drawString(entry.text.substring(entry.lines[line], entry.lines[line + 1]), PADDING * 2, y + metrics.getAscent());
+                y += lineHeight;
+            }
+
+            g.setColor(separator != null ? separator : Color.LIGHT_GRAY);
+            g.drawLine(PADDING, top + entry.height - 1, getWidth() - PADDING, top + entry.height - 1);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize()
+    {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        return lineHeight;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction)
+    {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height - lineHeight : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight()
+    {
+        return false;
+    }
+
+    private int height()
+    {
+        return (int) (end - base);
+    }
+
+    private Entry entry(int i)
+    {
+        return entries[(head + i) % entries.length];
+    }
+
+    private JViewport getViewport()
+    {
+        return getParent() instanceof JViewport ? (JViewport) getParent() : null;
+    }
+
+    private boolean isAtBottom(JViewport viewport)
+    {
+        return viewport.getViewPosition().y + viewport.getHeight() >= height() - lineHeight;
+    }
+
+    /**
+     * Notes where the view was before the first change in this event, and arranges for the viewport to catch up
+     * once the event is over.
+     */
+    private void beginUpdate()
+    {
+        if (updatePending)
+            return;
+
+        JViewport viewport = getViewport();
+        pinned = viewport == null || isAtBottom(viewport);
+        dropped = 0;
+        updatePending = true;
+        SwingUtilities.invokeLater(this::updateViewport);
+    }
+
+    private void updateViewport()
+    {
+        updatePending = false;
+        JViewport viewport = getViewport();
+
+        if (viewport != null)
+        {
+            viewport.setViewSize(getPreferredSize());
+
+            if (pinned)
+                scrollToBottom();
+            else if (dropped > 0)
+                viewport.setViewPosition(new Point(0, (int) Math.max(0, viewport.getViewPosition().y - dropped)));
+        }
+
+        repaint();
+    }
+
+    /**
+     * The first row whose bottom is below {@code y}.
+     */
+    private int firstVisible(int y)
+    {
+        int low = 0;
+        int high = count - 1;
+
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+
+            if (tops[(head + mid) % entries.length] - base <= y)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+
+        return low;
+    }
+
+    /**
+     * Wraps every kept message again for the current width. Only needed when the width or font changes.
+     */
+    private void rewrap()
+    {
+        if (entries == null || metrics == null)
+            return;
+
+        JViewport viewport = getViewport();
+        boolean pinned = updatePending ? this.pinned : viewport != null && isAtBottom(viewport);
+
+        base = 0;
+        end = 0;
+        dropped = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            Entry entry = entry(i);
+            layout(entry);
+            tops[(head + i) % entries.length] = end;
+            end += entry.height;
+        }
+
+        wrapWidth = getWidth();
+
+        if (viewport != null)
+        {
+            viewport.setViewSize(getPreferredSize());
+
+            if (pinned)
+                scrollToBottom();
+        }
+
+        repaint();
+    }
+
+    private void layout(Entry entry)
+    {
+        entry.lines = wrap(entry.text, Math.max(1, getWidth() - PADDING * 3));
+        entry.height = PADDING + titleHeight + entry.lines.length / 2 * lineHeight + PADDING;
+    }
+
+    /**
+     * Breaks text into lines no wider than {@code width}, at spaces where possible and at explicit newlines.
+     *
+     * @return the start and end of each line, in pairs.
+     */
+    private int[] wrap(String text, int width)
+    {
+        int[] lines = new int[8];
+        int size = 0;
+        int start = 0;
+        int lineWidth = 0;
+        int space = -1;
+        int widthAfterSpace = 0;
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c == '\n')
+            {
+                lines = add(lines, size, start, i);
+                size += 2;
+                start = i + 1;
+                lineWidth = 0;
+                space = -1;
+                continue;
+            }
+
+            int w = metrics.charWidth(c);
+
+            if (lineWidth + w > width && i > start)
+            {
+                // break after the last space on the line, or mid-word if there is none
+                boolean atSpace = space >= start;
+                lines = add(lines, size, start, atSpace ? space : i);
+                size += 2;
+                start = atSpace ? space + 1 : i;
+                lineWidth = atSpace ? widthAfterSpace : 0;
+                space = -1;
+            }
+
+            if (c == ' ')
+            {
+                space = i;
+                widthAfterSpace = 0;
+            } else
+            {
+                widthAfterSpace += w;
+            }
+
+            lineWidth += w;
+        }
+
+        lines = add(lines, size, start, text.length());
+        size += 2;
+
+        int[] trimmed = new int[size];
+        System.arraycopy(lines, 0, trimmed, 0, size);
+        return trimmed;
+    }
+
+    private static int[] add(int[] lines, int size, int start, int end)
+    {
+        if (size + 2 > lines.length)
+        {
+            int[] grown = new int[lines.length * 2];
+            System.arraycopy(lines, 0, grown, 0, size);
+            lines = grown;
+        }
+
+        lines[size] = start;
+        lines[size + 1] = end;
+        return lines;
+    }
+
+    private static class Entry
+    {
+        private final String sender;
+        private final String text;
+        private int[] lines;
+        private int height;
+
+        private Entry(String sender, String text)
+        {
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package main;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server-wide counters, histograms and gauges. Counters are striped {@link LongAdder}s and histograms are lock-free,
+ * so the hot paths can count everything they do without contending with each other. Gauges are only computed when
+ * the metrics are read.
+ * <p>
+ * Everything can be read with the {@code stats} console command, over JMX as the {@code main:type=Metrics} MBean,
+ * or from {@code http://127.0.0.1:PORT/metrics} in the Prometheus text format when {@code --metrics-port} is set.
+ *
+ * @author Kelan
+ */
+public final class Metrics
+{
+    public static final LongAdder connectionsOpened = new LongAdder();
+    public static final LongAdder connectionsClosed = new LongAdder();
+    public static final LongAdder logins = new LongAdder();
+    public static final LongAdder namesDenied = new LongAdder();
+    public static final LongAdder channelJoins = new LongAdder();
+    public static final LongAdder channelParts = new LongAdder();
+    public static final LongAdder kicks = new LongAdder();
+    public static final LongAdder timeouts = new LongAdder();
+    public static final LongAdder inactivityKicks = new LongAdder();
+    public static final LongAdder slowConsumers = new LongAdder();
+    public static final LongAdder commandsReceived = new LongAdder();
+    /** Bytes read from client sockets, as they arrive, so after compression. */
+    public static final LongAdder bytesReceived = new LongAdder();
+    /** Protocol bytes written to client sockets, before compression. */
+    public static final LongAdder bytesSent = new LongAdder();
+    public static final LongAdder broadcasts = new LongAdder();
+    public static final LongAdder channelMessages = new LongAdder();
+    /** Copies of broadcast and channel messages queued, one per recipient. */
+    public static final LongAdder deliveries = new LongAdder();
+    /** Messages dropped from the search index's queue because its indexer had fallen a whole ring behind. */
+    public static final LongAdder searchDropped = new LongAdder();
+
+    /** Time to queue a broadcast for every local user, in microseconds. */
+    public static final Histogram broadcastLatency = new Histogram();
+    /** Time to queue a channel message for every member, in microseconds. */
+    public static final Histogram channelLatency = new Histogram();
+    /** Time from a connection opening to its name being accepted, in microseconds. */
+    public static final Histogram handshakeTime = new Histogram();
+    /** Time to answer a search, in microseconds. */
+    public static final Histogram searchLatency = new Histogram();
+    public static final Histogram commandsPerSecond = new Histogram();
+    public static final Histogram bytesReceivedPerSecond = new Histogram();
+    public static final Histogram bytesSentPerSecond = new Histogram();
+
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private static HttpServer httpServer;
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * Registers a value that is computed whenever the metrics are read.
+     */
+    public static synchronized void gauge(String name, LongSupplier value)
+    {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Samples the per second rates once a second for as long as the timers run.
+     */
+    public static void startSampling(TimingWheel timers)
+    {
+        timers.schedule(new Runnable()
+        {
+            private long commands = commandsReceived.sum();
+            private long received = bytesReceived.sum();
+            private long sent = bytesSent.sum();
+
+            @Override
+            public void run()
+            {
+                long c = commandsReceived.sum();
+                long r = bytesReceived.sum();
+                long s = bytesSent.sum();
+
+                commandsPerSecond.record(c - commands);
+                bytesReceivedPerSecond.record(r - received);
+                bytesSentPerSecond.record(s - sent);
+
+                commands = c;
+                received = r;
+                sent = s;
+
+                timers.schedule(this, 1, TimeUnit.SECONDS);
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Every metric by name, in a stable order. Histograms are flattened into their count, percentiles and maximum.
+     */
+    public static synchronized Map<String, Long> snapshot()
+    {
+        Map<String, Long> values = new LinkedHashMap<>();
+
+        values.put("connections_opened", connectionsOpened.sum());
+        values.put("connections_closed", connectionsClosed.sum());
+        values.put("logins", logins.sum());
+        values.put("names_denied", namesDenied.sum());
+        values.put("channel_joins", channelJoins.sum());
+        values.put("channel_parts", channelParts.sum());
+        values.put("kicks", kicks.sum());
+        values.put("timeouts", timeouts.sum());
+        values.put("inactivity_kicks", inactivityKicks.sum());
+        values.put("slow_consumers", slowConsumers.sum());
+        values.put("commands_received", commandsReceived.sum());
+        values.put("bytes_received", bytesReceived.sum());
+        values.put("bytes_sent", bytesSent.sum());
+        values.put("broadcasts", broadcasts.sum());
+        values.put("channel_messages", channelMessages.sum());
+        values.put("deliveries", deliveries.sum());
+        values.put("search_dropped", searchDropped.sum());
+
+        put(values, "broadcast_latency_us", broadcastLatency);
+        put(values, "channel_latency_us", channelLatency);
+        put(values, "handshake_time_us", handshakeTime);
+        put(values, "search_latency_us", searchLatency);
+        put(values, "commands_per_second", commandsPerSecond);
+        put(values, "bytes_received_per_second", bytesReceivedPerSecond);
+        put(values, "bytes_sent_per_second", bytesSentPerSecond);
+
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+
+        return values;
+    }
+
+    private static void put(Map<String, Long> values, String name, Histogram histogram)
+    {
+        values.put(name + "_count", histogram.count());
+        values.put(name + "_p50", histogram.percentile(50));
+        values.put(name + "_p90", histogram.percentile(90));
+        values.put(name + "_p99", histogram.percentile(99));
+        values.put(name + "_max", histogram.max());
+    }
+
+    /**
+     * The metrics in the Prometheus text exposition format.
+     */
+    public static String prometheus()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, Long> value : snapshot().entrySet())
+            builder.append("tinyirc_").append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+
+        return builder.toString();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     */
+    public static void registerMBean()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("main:type=Metrics"));
+        } catch (JMException e)
+        {
+            Log.warn(Log.Category.SERVER, "could not register metrics MBean", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves {@code /metrics} on the loopback interface only.
+     */
+    public static void startHttp(int port) throws IOException
+    {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+
+        Log.info(Log.Category.SERVER, "serving metrics", "url", "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    public static void stopHttp()
+    {
+        if (httpServer != null)
+            httpServer.stop(0);
+    }
+
+    /**
+     * Exposes every value from {@link #snapshot()} as a read-only attribute.
+     */
+    private static class MetricsMBean implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            Long value = snapshot().get(attribute);
+
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes)
+        {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+
+            for (String attribute : attributes)
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+
+            for (String name : values.keySet())
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+/**
+ * Services every connection from a small, fixed number of selector threads instead of one thread per socket. The
+ * first event loop also accepts new connections, which are then handed out to the loops round-robin.
+ * <p>
+ * Accepting can be stopped on its own, so that on shutdown the loops keep flushing every connection's queue at
+ * once while the server waits for them to drain.
+ *
+ * @author Kelan
+ */
+public class NioServer
+{
+    private final ServerSocketChannel listener;
+    private final EventLoop[] loops;
+    private final Thread[] threads;
+    private int nextLoop;
+    private volatile boolean stopped;
+
+    public NioServer(int port, int loopCount) throws IOException
+    {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+
+        loops = new EventLoop[Math.max(1, loopCount)];
+        threads = new Thread[loops.length];
+
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop();
+    }
+
+    /**
+     * Starts the event loops, each on a thread of its own, which run until {@link #close()}.
+     */
+    public void start() throws IOException
+    {
+        listener.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++)
+        {
+            threads[i] = new Thread(loops[i], "nio-loop-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Stops accepting new connections. The ones already open carry on being served.
+     */
+    public void stopAccepting() throws IOException
+    {
+        listener.close();
+    }
+
+    /**
+     * Stops accepting, waits for the event loops to exit, then closes every connection still open without writing
+     * anything more to it.
+     */
+    public void close() throws IOException
+    {
+        listener.close();
+        stopped = true;
+
+        for (int i = 0; i < loops.length; i++)
+        {
+            loops[i].selector.wakeup();
+
+            if (threads[i] == null)
+                continue;
+
+            try
+            {
+                threads[i].join();
+            } catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+
+        while ((channel = listener.accept()) != null)
+        {
+            try
+            {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+
+                NioConnection connection = new NioConnection(loop, channel);
+                loop.execute(connection::register);
+            } catch (IOException | RuntimeException e)
+            {
+                // nothing owns the channel until its connection exists, so it is closed here or never
+                e.printStackTrace();
+                channel.close();
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<NioConnection> connections = new HashSet<>();
+
+        private EventLoop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this loop's thread, waking the selector if it is blocked.
+         */
+        private void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (!stopped)
+            {
+                try
+                {
+                    selector.select(500);
+                } catch (IOException e)
+                {
+                    e.printStackTrace();
+                    break;
+                }
+
+                Runnable task;
+
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    try
+                    {
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable())
+                        {
+                            accept();
+                            continue;
+                        }
+
+                        NioConnection connection = (NioConnection) key.attachment();
+
+                        if (key.isWritable())
+                            connection.flush();
+
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                    } catch (CancelledKeyException e)
+                    {
+                        // closed by another task while iterating
+                    } catch (IOException e)
+                    {
+                        if (key.attachment() instanceof NioConnection)
+                        {
+                            NioConnection connection = (NioConnection) key.attachment();
+                            connection.leaveMessage = e.getMessage();
+                            connection.closeNow();
+                        } else
+                        {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void shutdown() throws IOException
+        {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+                task.run();
+
+            selector.close();
+
+            // anything still queued had until the shutdown deadline to drain, and a blocking flush could hang on a
+            // peer that stopped reading
+            for (NioConnection connection : new HashSet<>(connections))
+                connection.closeNow();
+        }
+    }
+
+    private static class NioConnection extends Server.Connection
+    {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SocketAddress remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private Deflater deflater;
+        /** Compressed bytes not yet written, always in read mode. */
+        private ByteBuffer deflated;
+        private byte[] uncompressed;
+        private boolean unflushed;
+        private boolean syncing;
+        private SelectionKey key;
+        private boolean closing;
+        /** Set while reads are held back because the client has been sending too much. */
+        private boolean readPaused;
+
+        private NioConnection(EventLoop loop, SocketChannel channel) throws IOException
+        {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        private void register()
+        {
+            try
+            {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                loop.connections.add(this);
+                opened();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                closeNow();
+            }
+        }
+
+        private void read() throws IOException
+        {
+            int read = channel.read(readBuffer);
+
+            if (read < 0)
+            {
+                endOfStream();
+                closeNow();
+                return;
+            }
+
+            readBuffer.flip();
+
+            if (!receive(readBuffer))
+                closeNow();
+
+            readBuffer.clear();
+
+            // not reading holds the client back through TCP flow control
+            long delay = throttleDelay();
+
+            if (delay > 0 && key.isValid())
+            {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                schedule(() -> loop.execute(this::resumeReading), delay);
+            }
+        }
+
+        private void resumeReading()
+        {
+            readPaused = false;
+
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private int readInterest()
+        {
+            return readPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        @Override
+        protected void writeReady()
+        {
+            if (flushScheduled.compareAndSet(false, true))
+                loop.execute(this::flushQuietly);
+        }
+
+        private void flushQuietly()
+        {
+            try
+            {
+                flush();
+            } catch (IOException e)
+            {
+                leaveMessage = e.getMessage();
+                closeNow();
+            }
+        }
+
+        /**
+         * Writes as much of the outbound queue as the socket will take, and only asks the selector for write
+         * readiness while something is left over. Once compression has started, queued buffers are deflated a chunk
+         * at a time and the stream is sync flushed whenever the queue runs dry.
+         */
+        private void flush() throws IOException
+        {
+            while (true)
+            {
+                while (true)
+                {
+                    if (deflated != null && deflated.hasRemaining())
+                    {
+                        channel.write(deflated);
+
+                        if (deflated.hasRemaining())
+                        {
+                            awaitWritable();
+                            return;
+                        }
+                    }
+
+                    if (deflater != null && (syncing || !deflater.needsInput()))
+                    {
+                        deflate();
+                        continue;
+                    }
+
+                    ByteBuffer buffer = outbound.peek();
+
+                    if (buffer == null)
+                    {
+                        if (!unflushed)
+                            break;
+
+                        unflushed = false;
+                        syncing = true;
+                        continue;
+                    }
+
+                    if (buffer == START_DEFLATE)
+                    {
+                        deflater = newDeflater();
+                        deflated = ByteBuffer.allocate(8192);
+                        deflated.flip();
+                        uncompressed = new byte[8192];
+                        outbound.remove();
+                        continue;
+                    }
+
+                    if (deflater != null)
+                    {
+                        int length = Math.min(buffer.remaining(), uncompressed.length);
+                        buffer.get(uncompressed, 0, length);
+                        deflater.setInput(uncompressed, 0, length);
+                        outbound.consumed(length);
+                        Metrics.bytesSent.add(length);
+                        unflushed = true;
+                    } else
+                    {
+                        int written = channel.write(buffer);
+                        outbound.consumed(written);
+                        Metrics.bytesSent.add(written);
+
+                        if (buffer.hasRemaining())
+                        {
+                            awaitWritable();
+                            return;
+                        }
+                    }
+
+                    if (!buffer.hasRemaining())
+                        outbound.remove();
+                }
+
+                if (key != null && key.isValid())
+                    key.interestOps(readInterest());
+
+                flushScheduled.set(false);
+
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+                    break;
+            }
+
+            if (closing)
+                closeNow();
+        }
+
+        private void awaitWritable()
+        {
+            if (key != null && key.isValid())
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Refills {@link #deflated}, which must be empty, from the deflater.
+         */
+        private void deflate()
+        {
+            deflated.clear();
+            int length = deflater.deflate(deflated.array(), 0, deflated.capacity(), syncing ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+            deflated.limit(length);
+
+            // a sync flush is complete once it no longer fills the buffer
+            if (syncing && length < deflated.capacity())
+                syncing = false;
+        }
+
+        @Override
+        public void disconnect(String reason)
+        {
+            super.disconnect(reason);
+            close();
+        }
+
+        /**
+         * Closes once everything queued before this call has been written.
+         */
+        @Override
+        public void close()
+        {
+            loop.execute(() -> {
+                closing = true;
+                flushQuietly();
+
+                if (outbound.isEmpty())
+                    closeNow();
+            });
+        }
+
+        @Override
+        public void abort()
+        {
+            loop.execute(this::closeNow);
+        }
+
+        private void closeNow()
+        {
+            try
+            {
+                if (key != null)
+                    key.cancel();
+                channel.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+
+            loop.connections.remove(this);
+            closed();
+
+            if (deflater != null)
+            {
+                deflater.end();
+                deflater = null;
+            }
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress()
+        {
+            return remoteAddress;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes waiting to be written to one client. Any thread may offer, only the connection's writer drains. The queue
+ * is bounded by a high water mark: once the backlog passes it the queue is congested and refuses further messages
+ * until the writer has drained it below the low water mark again. {@link #congestedSince()} lets the owner evict
+ * consumers that stay congested for too long.
+ *
+ * @author Kelan
+ */
+public class OutboundQueue
+{
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long highWaterMark;
+    private final long lowWaterMark;
+    private volatile long congestedSince;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public OutboundQueue(long highWaterMark, long lowWaterMark)
+    {
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = Math.min(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * Queues the buffer unless the queue is congested.
+     *
+     * @return true if the buffer was queued, false if it was dropped.
+     */
+    public boolean offer(ByteBuffer buffer)
+    {
+        int length = buffer.remaining();
+
+        if (congestedSince != 0L || queuedBytes.get() + length > highWaterMark)
+        {
+            if (congestedSince == 0L)
+                congestedSince = System.nanoTime();
+
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        return offerUrgent(buffer);
+    }
+
+    /**
+     * Queues the buffer regardless of the water marks. Only meant for control lines such as KICKED and the one-off
+     * history replay on join, neither of which may be dropped.
+     */
+    public boolean offerUrgent(ByteBuffer buffer)
+    {
+        queuedBytes.addAndGet(buffer.remaining());
+        buffers.add(buffer);
+        return true;
+    }
+
+    /**
+     * The buffer currently being written, or null if there is nothing left.
+     */
+    public ByteBuffer peek()
+    {
+        return buffers.peek();
+    }
+
+    /**
+     * Removes the head buffer once it has been fully written.
+     */
+    public void remove()
+    {
+        buffers.poll();
+    }
+
+    /**
+     * Records that the writer has put {@code bytes} on the wire.
+     */
+    public void consumed(int bytes)
+    {
+        if (queuedBytes.addAndGet(-bytes) <= lowWaterMark && congestedSince != 0L)
+            congestedSince = 0L;
+    }
+
+    public boolean isEmpty()
+    {
+        return buffers.isEmpty();
+    }
+
+    public long queuedBytes()
+    {
+        return queuedBytes.get();
+    }
+
+    /**
+     * The {@link System#nanoTime()} at which the queue became congested, or 0 if it is not.
+     */
+    public long congestedSince()
+    {
+        return congestedSince;
+    }
+
+    public long dropped()
+    {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,384 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and codecs for the binary framing mode.
+ * <p>
+ * Clients start out on the newline delimited text protocol. The server advertises binary support by sending
+ * {@code SUBMIT_NAME FRAMING=binary}; a client that wants it replies {@code FRAMING binary}, and once the server
+ * answers {@code FRAMING_ACCEPTED binary} both sides switch to binary frames for the rest of the connection. Clients
+ * that ignore the advertisement simply carry on with text.
+ * <p>
+ * A binary frame is a 4 byte big-endian length, followed by a 1 byte type and the type's fields. Every field but
+ * the last is prefixed with a 2 byte length; the last field takes the rest of the frame. Nothing is ever escaped,
+ * so names and bodies may contain any character, including ']' and newlines.
+ * <p>
+ * The server also offers {@code RESUME=epoch}, where the epoch changes every time the server starts. A client that
+ * replies {@code RESUME} (before switching to binary, since the reply is text) gets every message kept in a history
+ * preceded by {@code SEQ n}, its sequence number in that history; replying {@code RESUME n} instead, with the epoch
+ * it saw last time unchanged, gets only the default channel's messages from {@code n} on, rather than the usual
+ * replay. {@code /JOIN #channel n} does the same for a channel. Either way the server answers
+ * {@code RESUME_ACCEPTED epoch}. If the messages from {@code n} on are no longer all kept, the usual replay is sent.
+ * Once the name is accepted the server sends {@code RESUME_TOKEN token}; a client that reconnects with
+ * {@code RESUME n token} may take its name back from its old connection even if that has not timed out yet.
+ * <p>
+ * {@code /SEARCH page query} looks through past messages in the default channel. The server answers
+ * {@code SEARCH_RESULTS total page count}, followed by {@code count} lines of {@code SEARCH_HIT message}, each
+ * carrying a matching message in its usual text form, newest first.
+ * <p>
+ * Once named, a text client sends {@code /JOIN}, {@code /PART}, {@code /MSG} and {@code /SEARCH} with a leading
+ * {@code /}, so that chat starting with one of those words is still chat. A chat line that starts
+ * with {@code /} itself has it doubled (see {@link #chatLine(String)}), and the server drops the
+ * extra one. {@code PING} and {@code DISCONNECT} predate this and are recognised only as whole lines.
+ *
+ * @author Kelan
+ */
+public final class Protocol
+{
+    public enum Framing
+    {
+        TEXT, BINARY
+    }
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 65536;
+
+    // client to server
+    public static final byte NAME = 1;
+    public static final byte PING = 2;
+    public static final byte DISCONNECT = 3;
+    public static final byte CHAT = 4;
+    public static final byte JOIN = 5;
+    public static final byte PART = 6;
+    public static final byte CHANNEL_CHAT = 7;
+    public static final byte SEARCH = 8;
+
+    // server to client
+    public static final byte SUBMIT_NAME = 32;
+    public static final byte NAME_ACCEPTED = 33;
+    public static final byte NAME_DENIED = 34;
+    public static final byte MESSAGE = 35;
+    public static final byte CHANNEL_MESSAGE = 36;
+    public static final byte KICKED = 37;
+    public static final byte PURGE = 38;
+    public static final byte SERVER_CLOSING = 39;
+    public static final byte JOINED = 40;
+    public static final byte PARTED = 41;
+    public static final byte CHANNEL_DENIED = 42;
+    public static final byte FRAMING_ACCEPTED = 43;
+    public static final byte COMPRESS_ACCEPTED = 44;
+    public static final byte SEQ = 45;
+    public static final byte RESUME_ACCEPTED = 46;
+    public static final byte RESUME_TOKEN = 47;
+    public static final byte SEARCH_RESULTS = 48;
+    public static final byte SEARCH_HIT = 49;
+
+    /** Starts every text command a named client sends other than {@code PING} and {@code DISCONNECT}. */
+    public static final char COMMAND_PREFIX = '/';
+
+    private static final String[] TEXT_COMMANDS = new String[64];
+    /** Prefixes of the text commands a named client may send, indexed by their binary type. */
+    private static final byte[][] TEXT_REQUESTS = new byte[9][];
+
+    static
+    {
+        TEXT_COMMANDS[PING] = "PING";
+        TEXT_COMMANDS[DISCONNECT] = "DISCONNECT";
+        TEXT_COMMANDS[SUBMIT_NAME] = "SUBMIT_NAME";
+        TEXT_COMMANDS[NAME_ACCEPTED] = "NAME_ACCEPTED";
+        TEXT_COMMANDS[NAME_DENIED] = "NAME_DENIED";
+        TEXT_COMMANDS[KICKED] = "KICKED";
+        TEXT_COMMANDS[PURGE] = "PURGE";
+        TEXT_COMMANDS[SERVER_CLOSING] = "SERVER_CLOSING";
+        TEXT_COMMANDS[JOINED] = "JOINED";
+        TEXT_COMMANDS[PARTED] = "PARTED";
+        TEXT_COMMANDS[CHANNEL_DENIED] = "CHANNEL_DENIED";
+        TEXT_COMMANDS[FRAMING_ACCEPTED] = "FRAMING_ACCEPTED";
+        TEXT_COMMANDS[COMPRESS_ACCEPTED] = "COMPRESS_ACCEPTED";
+        TEXT_COMMANDS[SEQ] = "SEQ";
+        TEXT_COMMANDS[RESUME_ACCEPTED] = "RESUME_ACCEPTED";
+        TEXT_COMMANDS[RESUME_TOKEN] = "RESUME_TOKEN";
+        TEXT_COMMANDS[SEARCH_RESULTS] = "SEARCH_RESULTS";
+        TEXT_COMMANDS[SEARCH_HIT] = "SEARCH_HIT";
+
+        TEXT_REQUESTS[PING] = "PING".getBytes(StandardCharsets.US_ASCII);
+        TEXT_REQUESTS[DISCONNECT] = "DISCONNECT".getBytes(StandardCharsets.US_ASCII);
+        TEXT_REQUESTS[JOIN] = "/JOIN ".getBytes(StandardCharsets.US_ASCII);
+        TEXT_REQUESTS[PART] = "/PART ".getBytes(StandardCharsets.US_ASCII);
+        TEXT_REQUESTS[CHANNEL_CHAT] = "/MSG ".getBytes(StandardCharsets.US_ASCII);
+        TEXT_REQUESTS[SEARCH] = "/SEARCH ".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Protocol()
+    {
+    }
+
+    /**
+     * Number of fields carried by frames of the given type.
+     */
+    public static int fieldCount(byte type)
+    {
+        switch (type)
+        {
+            case MESSAGE:
+            case CHANNEL_CHAT:
+                return 2;
+            case CHANNEL_MESSAGE:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Identifies a client to server text line from its raw bytes, so commands can be dispatched without decoding
+     * the line first.
+     *
+     * @return the binary type of the command the line starts with, or {@link #CHAT} if it is a plain chat line.
+     */
+    public static byte requestType(byte[] line, int length)
+    {
+        for (byte type = 0; type < TEXT_REQUESTS.length; type++)
+        {
+            byte[] prefix = TEXT_REQUESTS[type];
+
+            // PING and DISCONNECT take no arguments, so chat that merely starts with them is left alone
+            if (prefix == null || prefix.length > length || (prefix[0] != COMMAND_PREFIX && prefix.length != length))
+                continue;
+
+            int i = 0;
+
+            while (i < prefix.length && line[i] == prefix[i])
+                i++;
+
+            if (i == prefix.length)
+                return type;
+        }
+
+        return CHAT;
+    }
+
+    /**
+     * Length of the text command prefix for a type returned by {@link #requestType(byte[], int)}; the arguments
+     * start straight after it.
+     */
+    public static int requestPrefixLength(byte type)
+    {
+        byte[] prefix = type >= 0 && type < TEXT_REQUESTS.length ? TEXT_REQUESTS[type] : null;
+        return prefix != null ? prefix.length : 0;
+    }
+
+    /**
+     * Where the body of a plain chat line starts: one character in if the line starts with a doubled
+     * {@link #COMMAND_PREFIX}, otherwise at the start.
+     */
+    public static int chatOffset(byte[] line, int length)
+    {
+        return length > 1 && line[0] == COMMAND_PREFIX && line[1] == COMMAND_PREFIX ? 1 : 0;
+    }
+
+    /**
+     * The text line that sends a chat body to the default channel: the body escaped, with its
+     * {@link #COMMAND_PREFIX} doubled if it starts with one, so it can never be read as a command.
+     */
+    public static String chatLine(String body)
+    {
+        String escaped = escape(body);
+        return escaped.length() > 0 && escaped.charAt(0) == COMMAND_PREFIX ? COMMAND_PREFIX + escaped : escaped;
+    }
+
+    public static ByteBuffer encode(byte type, String... fields)
+    {
+        byte[][] bytes = new byte[fields.length][];
+        int length = 1;
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += bytes[i].length + (i < fields.length - 1 ? 2 : 0);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).put(type);
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (i < bytes.length - 1)
+                buffer.putShort((short) bytes[i].length);
+
+            buffer.put(bytes[i]);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Splits the payload of a frame (everything after the type byte) into its fields.
+     *
+     * @return null if the payload is malformed.
+     */
+    public static String[] decode(byte type, ByteBuffer payload)
+    {
+        String[] fields = new String[fieldCount(type)];
+        ByteBuffer buffer = payload.duplicate();
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            int length = buffer.remaining();
+
+            if (i < fields.length - 1)
+            {
+                if (buffer.remaining() < 2)
+                    return null;
+
+                length = buffer.getShort() & 0xFFFF;
+
+                if (length > buffer.remaining())
+                    return null;
+            }
+
+            fields[i] = StandardCharsets.UTF_8.decode(slice(buffer, length)).toString();
+        }
+
+        return fields;
+    }
+
+    /**
+     * Converts a server to client text line into the equivalent binary frame. Chat bodies have their {@code \n}
+     * escapes turned back into real newlines.
+     */
+    public static ByteBuffer toBinary(String line)
+    {
+        if (line.startsWith("MESSAGE["))
+        {
+            int end = line.indexOf(']');
+            return encode(MESSAGE, line.substring("MESSAGE[".length(), end), unescape(line.substring(end + 1)));
+        }
+
+        if (line.startsWith("CHANNEL_MESSAGE["))
+        {
+            int channelEnd = line.indexOf(']');
+            int fromEnd = line.indexOf(']', channelEnd + 1);
+            return encode(CHANNEL_MESSAGE, line.substring("CHANNEL_MESSAGE[".length(), channelEnd), line.substring(channelEnd + 2, fromEnd), unescape(line.substring(fromEnd + 1)));
+        }
+
+        int space = line.indexOf(' ');
+        byte type = responseType(space < 0 ? line : line.substring(0, space));
+
+        if (type == 0)
+            throw new IllegalArgumentException("No binary form for \"" + line + "\"");
+
+        return encode(type, space < 0 ? "" : line.substring(space + 1));
+    }
+
+    /**
+     * Binary type of a server to client text command such as {@code JOINED}, other than the chat messages.
+     *
+     * @return 0 if there is no such command.
+     */
+    public static byte responseType(String command)
+    {
+        for (byte type = 0; type < TEXT_COMMANDS.length; type++)
+            if (command.equals(TEXT_COMMANDS[type]))
+                return type;
+
+        return 0;
+    }
+
+    /**
+     * Converts a frame into its text line. For what the server sends this is the inverse of
+     * {@link #toBinary(String)}; for a client's request it is the line a text client sends, with chat bodies
+     * escaped so that they cannot be read as commands.
+     */
+    public static String toText(byte type, String[] fields)
+    {
+        switch (type)
+        {
+            case MESSAGE:
+                return "MESSAGE[" + fields[0] + "]" + escape(fields[1]);
+            case CHANNEL_MESSAGE:
+                return "CHANNEL_MESSAGE[" + fields[0] + "][" + fields[1] + "]" + escape(fields[2]);
+            case NAME:
+                return fields[0];
+            case CHAT:
+                return chatLine(fields[0]);
+            case JOIN:
+                return "/JOIN " + fields[0];
+            case PART:
+                return "/PART " + fields[0];
+            case SEARCH:
+                return "/SEARCH " + fields[0];
+            case CHANNEL_CHAT:
+                return "/MSG " + fields[0] + " " + escape(fields[1]);
+            default:
+                String command = type >= 0 && type < TEXT_COMMANDS.length ? TEXT_COMMANDS[type] : null;
+
+                if (command == null)
+                    return null;
+
+                return fields[0].isEmpty() ? command : command + " " + fields[0];
+        }
+    }
+
+    /**
+     * Chat bodies on the text protocol carry newlines as the two characters {@code \n}, and backslashes as
+     * {@code \\}, so that {@code unescape(escape(body))} is always {@code body}. Binary frames carry bodies as they
+     * are.
+     */
+    public static String escape(String body)
+    {
+        if (body.indexOf('\n') < 0 && body.indexOf('\\') < 0)
+            return body;
+
+        StringBuilder escaped = new StringBuilder(body.length() + 8);
+
+        for (int i = 0; i < body.length(); i++)
+        {
+            char c = body.charAt(i);
+
+            if (c == '\n')
+                escaped.append("\\n");
+            else if (c == '\\')
+                escaped.append("\\\\");
+            else
+                escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * The inverse of {@link #escape(String)}. Any other backslash is kept as it is, as older clients send them
+     * unescaped.
+     */
+    public static String unescape(String body)
+    {
+        if (body.indexOf('\\') < 0)
+            return body;
+
+        StringBuilder unescaped = new StringBuilder(body.length());
+
+        for (int i = 0; i < body.length(); i++)
+        {
+            char c = body.charAt(i);
+
+            if (c == '\\' && i + 1 < body.length() && (body.charAt(i + 1) == 'n' || body.charAt(i + 1) == '\\'))
+                unescaped.append(body.charAt(++i) == 'n' ? '\n' : '\\');
+            else
+                unescaped.append(c);
+        }
+
+        return unescaped.toString();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length)
+    {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+}
@@ -0,0 +1,485 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index over the most recent broadcast messages, for finding past messages by keyword and by sender.
+ * <p>
+ * Each indexed message gets the next id in a ring of {@code capacity} messages, and every word and sender maps to
+ * the ascending ids of the messages containing it, kept in a plain {@code int[]}. Ids that have fallen out of the
+ * ring are dropped from a list when it next needs to grow, and lists left with nothing live in them are swept away
+ * once per ring's worth of messages, so memory stays bounded however long the server runs.
+ * <p>
+ * {@link #add(Frame)} only queues the message, so broadcasting never waits for the index. A single indexer thread
+ * splits queued messages into words and applies them in batches under a write lock; searches share the read lock,
+ * so they only ever wait for a batch being applied, never for a broadcast or for each other. A message can be found
+ * once the indexer has got to it, normally well under a millisecond after it was sent. At most {@code capacity}
+ * messages wait for the indexer; if it falls that far behind, the oldest waiting message is dropped for each new
+ * one, as indexing the new ones would push it out of the ring anyway. Senders are kept as they are written, since
+ * names are case sensitive, while words are matched regardless of case.
+ *
+ * @author Kelan
+ */
+public class SearchIndex
+{
+    public static final int PAGE_SIZE = 20;
+    private static final int MAX_TERMS = 8;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int BATCH_SIZE = 256;
+
+    private static final Frame PURGE = Frame.of("");
+
+    private final int capacity;
+    private final Frame[] documents;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Postings> senders = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Queue<Frame> pending = new ConcurrentLinkedQueue<>();
+    /** Messages in {@link #pending}, not counting purges. */
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread indexer;
+    /** Id the next indexed message will get. Only changed by the indexer, under the write lock. */
+    private int next;
+    private int sinceSweep;
+    /** Messages with a lower sequence number were purged, even if the indexer has not caught up yet. */
+    private volatile long floor = Long.MIN_VALUE;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity number of most recent messages that can be found.
+     */
+    public SearchIndex(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.documents = new Frame[this.capacity];
+
+        indexer = new Thread(this::drain, "search-index");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queues a {@code MESSAGE[from]body} frame to be indexed, making room by dropping the oldest one waiting if a
+     * whole ring's worth already is. Never blocks; other frames are ignored.
+     */
+    public void add(Frame frame)
+    {
+        if (closed)
+            return;
+
+        if (queued.incrementAndGet() > capacity)
+            dropOldest();
+
+        pending.add(frame);
+        LockSupport.unpark(indexer);
+    }
+
+    /**
+     * Hides every message with a sequence number below {@code floor} straight away, and drops everything indexed so
+     * far once the indexer gets to it. Messages queued after the purge are kept.
+     */
+    public void purge(long floor)
+    {
+        this.floor = floor;
+        pending.add(PURGE);
+        LockSupport.unpark(indexer);
+    }
+
+    /**
+     * Takes the oldest waiting message out of the queue, unless the indexer gets to it first. Purges stay where
+     * they are, and everything queued before one would be thrown away by it anyway.
+     */
+    private void dropOldest()
+    {
+        for (Frame frame : pending)
+        {
+            if (frame != PURGE && pending.remove(frame))
+            {
+                queued.decrementAndGet();
+                Metrics.searchDropped.increment();
+                return;
+            }
+        }
+    }
+
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(indexer);
+    }
+
+    /**
+     * Finds the messages containing every word in {@code query}, newest first. A word of the form
+     * {@code from:name} matches the sender instead, with the name's case as it is. A query of more than
+     * {@value #MAX_TERMS} words matches nothing.
+     *
+     * @param page which {@link #PAGE_SIZE} results to return, from 0.
+     */
+    public Results search(String query, int page)
+    {
+        String sender = null;
+        Set<String> words = new LinkedHashSet<>();
+
+        for (String word : query.trim().split("\\s+"))
+        {
+            if (word.length() > "from:".length() && word.regionMatches(true, 0, "from:", 0, "from:".length()))
+                sender = word.substring("from:".length());
+            else
+                tokenize(word, words);
+        }
+
+        List<Frame> hits = new ArrayList<>();
+        int total = 0;
+
+        if (sender == null && words.isEmpty() || words.size() > MAX_TERMS || page < 0)
+            return new Results(total, page, hits);
+
+        long floor = this.floor;
+        lock.readLock().lock();
+
+        try
+        {
+            List<Postings> lists = new ArrayList<>();
+
+            if (sender != null)
+                lists.add(senders.get(sender));
+
+            for (String word : words)
+                lists.add(terms.get(word));
+
+            if (lists.contains(null))
+                return new Results(total, page, hits);
+
+            // walk the shortest list and look each id up in the others
+            lists.sort(Comparator.comparingInt(postings -> postings.size));
+            Postings shortest = lists.get(0);
+            int oldest = oldest();
+            long skip = (long) page * PAGE_SIZE;
+
+            for (int i = shortest.size - 1; i >= 0 && shortest.ids[i] >= oldest; i--)
+            {
+                int id = shortest.ids[i];
+                boolean match = true;
+
+                for (int j = 1; j < lists.size() && match; j++)
+                    match = lists.get(j).contains(id);
+
+                Frame frame = documents[id % capacity];
+
+                if (!match || frame.sequence() < floor)
+                    continue;
+
+                if (total >= skip && hits.size() < PAGE_SIZE)
+                    hits.add(frame);
+
+                total++;
+            }
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+
+        return new Results(total, page, hits);
+    }
+
+    /**
+     * Number of messages that can currently be found, before any purge the indexer has not caught up with.
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return next - oldest();
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of distinct words and senders indexed.
+     */
+    public int keys()
+    {
+        lock.readLock().lock();
+
+        try
+        {
+            return terms.size() + senders.size();
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void drain()
+    {
+        List<Frame> batch = new ArrayList<>();
+        List<String[]> keys = new ArrayList<>();
+
+        while (!closed)
+        {
+            Frame frame;
+            boolean purge = false;
+
+            // split messages into words before taking the lock, so searches only wait for the postings to be updated
+            while (batch.size() < BATCH_SIZE && (frame = pending.poll()) != null)
+            {
+                if (frame == PURGE)
+                {
+                    purge = true;
+                    batch.clear();
+                    keys.clear();
+                    break;
+                }
+
+                queued.decrementAndGet();
+                String[] parsed = parse(frame);
+
+                if (parsed != null)
+                {
+                    batch.add(frame);
+                    keys.add(parsed);
+                }
+            }
+
+            if (purge || !batch.isEmpty())
+            {
+                lock.writeLock().lock();
+
+                try
+                {
+                    if (purge)
+                        reset();
+
+                    for (int i = 0; i < batch.size(); i++)
+                        index(batch.get(i), keys.get(i));
+                } finally
+                {
+                    lock.writeLock().unlock();
+                }
+
+                batch.clear();
+                keys.clear();
+            }
+
+            if (pending.isEmpty())
+                LockSupport.park(this);
+        }
+    }
+
+    private void index(Frame frame, String[] keys)
+    {
+        int id = next++;
+        int oldest = oldest();
+        documents[id % capacity] = frame;
+        postings(senders, keys[0]).add(id, oldest);
+
+        for (int i = 1; i < keys.length; i++)
+            postings(terms, keys[i]).add(id, oldest);
+
+        if (++sinceSweep >= capacity)
+            sweep();
+
+        if (next == Integer.MAX_VALUE)
+            renumber();
+    }
+
+    private static Postings postings(Map<String, Postings> map, String key)
+    {
+        Postings postings = map.get(key);
+
+        if (postings == null)
+            map.put(key, postings = new Postings());
+
+        return postings;
+    }
+
+    /**
+     * Id of the oldest message still in the ring.
+     */
+    private int oldest()
+    {
+        return Math.max(0, next - capacity);
+    }
+
+    /**
+     * Drops the ids that have left the ring from every list, and the lists left empty.
+     */
+    private void sweep()
+    {
+        int oldest = oldest();
+        sinceSweep = 0;
+
+        for (Map<String, Postings> map : Arrays.asList(terms, senders))
+        {
+            for (Iterator<Postings> i = map.values().iterator(); i.hasNext(); )
+            {
+                Postings postings = i.next();
+                postings.prune(oldest);
+
+                if (postings.size == 0)
+                    i.remove();
+            }
+        }
+    }
+
+    /**
+     * Moves every id down by a multiple of the capacity before they overflow. The ring slots stay where they are.
+     */
+    private void renumber()
+    {
+        sweep();
+        int base = oldest() - oldest() % capacity;
+
+        for (Map<String, Postings> map : Arrays.asList(terms, senders))
+            for (Postings postings : map.values())
+                for (int i = 0; i < postings.size; i++)
+                    postings.ids[i] -= base;
+
+        next -= base;
+    }
+
+    private void reset()
+    {
+        Arrays.fill(documents, null);
+        terms.clear();
+        senders.clear();
+        next = 0;
+        sinceSweep = 0;
+    }
+
+    /**
+     * Splits a {@code MESSAGE[from]body} frame into its sender, as it is, followed by the distinct words in its
+     * body.
+     *
+     * @return null if the frame is not a chat message.
+     */
+    private static String[] parse(Frame frame)
+    {
+        String line = frame.line();
+        int end = line.indexOf(']');
+
+        if (!line.startsWith("MESSAGE[") || end < 0)
+            return null;
+
+        // the sender is kept apart from the words, so a message that mentions its own sender still has that word
+        Set<String> words = new LinkedHashSet<>();
+        tokenize(Protocol.unescape(line.substring(end + 1)), words);
+
+        String[] keys = new String[words.size() + 1];
+        keys[0] = line.substring("MESSAGE[".length(), end);
+        System.arraycopy(words.toArray(new String[0]), 0, keys, 1, words.size());
+        return keys;
+    }
+
+    /**
+     * Adds the runs of letters and digits in {@code text} to {@code words}, lower cased and cut to
+     * {@value #MAX_TERM_LENGTH} characters.
+     */
+    private static void tokenize(String text, Set<String> words)
+    {
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0)
+            {
+                start = i;
+            } else if (!wordChar && start >= 0)
+            {
+                words.add(normalize(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH))));
+                start = -1;
+            }
+        }
+    }
+
+    private static String normalize(String word)
+    {
+        return word.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static final class Results
+    {
+        /** Number of matching messages across every page. */
+        public final int total;
+        public final int page;
+        /** The matching messages on this page, newest first. */
+        public final List<Frame> hits;
+
+        private Results(int total, int page, List<Frame> hits)
+        {
+            this.total = total;
+            this.page = page;
+            this.hits = Collections.unmodifiableList(hits);
+        }
+    }
+
+    /**
+     * The ascending ids of the messages containing one word or sent by one user.
+     */
+    private static final class Postings
+    {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id, int oldest)
+        {
+            if (size == ids.length)
+            {
+                // make room by dropping ids that have left the ring before growing
+                prune(oldest);
+
+                if (size == ids.length)
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+
+            ids[size++] = id;
+        }
+
+        private boolean contains(int id)
+        {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        private void prune(int oldest)
+        {
+            int live = Arrays.binarySearch(ids, 0, size, oldest);
+
+            if (live < 0)
+                live = -live - 1;
+
+            if (live > 0)
+            {
+                System.arraycopy(ids, live, ids, 0, size - live);
+                size -= live;
+            }
+
+            if (ids.length > 4 && size < ids.length / 4)
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+        }
+    }
+}
@@ -1,285 +1,1858 @@
 package main;
 
-import javafx.util.Pair;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * @author Kelan
+ */
+public class Server
+{
+    private static int PORT = 8088;
+    private static final long PING_INTERVAL = 1000000000L; // 1 second
+    private static final long PING_TIMEOUT = 30000000000L; // 30 seconds
+    private static final long INACTIVITY_TIMEOUT = 600000000000L; // 600 seconds
+    private static volatile boolean running = true;
+    /** The thread serving clients, which shuts the server down once it stops running. */
+    private static volatile Thread serving;
+    /** Closed to stop accepting new connections. */
+    private static volatile Closeable acceptor;
+    private static long shutdownTimeout = 5000000000L;
+    private static Map<String, String> options = new HashMap<>();
+    private static ThreadFactory threadFactory = Thread::new;
+    private static String threadType = "platform";
+    private static int queueHighWaterMark = 1024 * 1024;
+    private static int queueLowWaterMark = 256 * 1024;
+    private static long slowConsumerTimeout = 10000000000L;
+    private static boolean compression = true;
+    private static int compressionLevel = 6;
+    private static int floodMessages = 5;
+    private static int floodMessageBurst = 20;
+    private static int floodBytes = 8 * 1024;
+    private static int floodByteBurst = 32 * 1024;
+    private static long floodKickDelay = 10000000000L;
+    private static TokenBucket broadcastLimit;
+
+    private static final UserRegistry<Connection> users = new UserRegistry<>();
+    /** Every connection that has been opened and not yet closed, named or not. */
+    private static final Set<Connection> openConnections = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    private static final String DEFAULT_CHANNEL = "#general";
+    private static int channelHistory = 200;
+    private static int channelHistoryBytes = 128 * 1024;
+    private static int maxChannels = 16;
+    private static MessageHistory messageHistory;
+    /** Changes every time the server starts, so clients know whether sequence numbers they saw before still apply. */
+    private static final String historyEpoch = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+    /** Start of the next channel history's sequence numbers, so a channel that is closed and reopened never reuses them. */
+    private static final AtomicLong channelSequences = new AtomicLong();
+    private static final SecureRandom tokens = new SecureRandom();
+    private static HistoryLog historyLog;
+    private static SearchIndex searchIndex;
+    private static TimingWheel timers;
+    private static int replayCount = 100;
+    private static Federation federation;
+
+    /**
+     * Starts the server. Supported options:
+     * <pre>
+     *   --port=8088          port to listen on
+     *   --mode=blocking|nio  one thread per connection, or selector based event loops
+     *   --loops=N            number of event loop threads in nio mode
+     *   --threads=platform|virtual
+     *                        thread type for connection handlers and the command and timer threads
+     *   --queue-high=BYTES   outbound backlog at which a client stops receiving new messages
+     *   --queue-low=BYTES    backlog a congested client has to drain to before it receives messages again
+     *   --slow-consumer-timeout=MS
+     *                        how long a client may stay congested before it is kicked
+     *   --history=N          number of recent messages kept for new users
+     *   --history-bytes=BYTES
+     *                        upper bound on the encoded size of the kept messages
+     *   --replay=N           number of recent messages sent to a user when they join
+     *   --channel-history=N  number of recent messages kept per channel, other than the default channel
+     *   --channel-history-bytes=BYTES
+     *                        upper bound on the encoded size of each channel's kept messages
+     *   --max-channels=N     number of channels a user may be in at once
+     *   --compression=deflate|off
+     *                        whether clients are offered deflate compression, which costs around 300 KB of native
+     *                        memory per compressed connection
+     *   --compression-level=N
+     *                        deflate level, from 1 (fastest) to 9 (smallest)
+     *   --flood-messages=N   commands a client may send per second, other than PING, before it is throttled
+     *   --flood-burst=N      commands a client may send at once before the per second limit applies
+     *   --flood-bytes=BYTES  bytes a client may send per second before it is throttled
+     *   --flood-bytes-burst=BYTES
+     *                        bytes a client may send at once before the per second limit applies
+     *   --flood-kick=MS      a client that has sent enough to be throttled for this long is kicked
+     *   --shutdown-timeout=MS
+     *                        how long shutdown waits for clients to be sent what is queued for them before closing
+     *                        their connections regardless
+     *   --broadcast-bytes=BYTES
+     *                        bytes of chat per second the server fans out to all recipients combined, beyond which
+     *                        senders are throttled
+     *   --history-dir=PATH   keep a durable log of messages in this directory, reloaded on startup
+     *   --history-segment-bytes=BYTES
+     *                        size at which the log starts a new segment file
+     *   --history-segments=N number of segment files kept
+     *   --history-fsync=batch|interval|never
+     *                        when the log is synced to disk
+     *   --history-fsync-interval=MS
+     *                        time between syncs for the interval policy
+     *   --search-index=N     number of recent messages users can search, 0 to turn searching off
+     *   --peer-port=N        link with other server processes, listening for them on this port
+     *   --peers=HOST:PORT,...
+     *                        peer ports of the other servers to link to
+     *   --peer-bind=ADDRESS  address the peer port listens on, 127.0.0.1 unless other servers are on other hosts
+     *   --peer-secret=SECRET secret shared by every linked server, required to link
+     *   --node=NAME          name of this server among its peers, unique in the network
+     *   --metrics-port=N     serve metrics for scraping at http://127.0.0.1:N/metrics
+     *   --log-level=LEVEL    debug, info, warn, error or off
+     *   --log-CATEGORY=LEVEL override the level for one of server, connection, handshake, chat, history, admin,
+     *                        federation
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException
+    {
+        configure(args);
+        UpdateHandler.startCommandThread();
+
+        // a terminated server drains like one shut down from the console, as long as it does so in time
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Thread serving = Server.serving;
+            stop();
+
+            try
+            {
+                if (serving != null)
+                    serving.join(shutdownTimeout / 1000000L + 2000);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, "shutdown"));
+
+        Metrics.registerMBean();
+
+        int metricsPort = getOption("metrics-port", 0);
+
+        if (metricsPort > 0)
+            Metrics.startHttp(metricsPort);
+
+        int peerPort = getOption("peer-port", 0);
+
+        if (peerPort > 0)
+        {
+            String peers = getOption("peers", "").trim();
+            String secret = getOption("peer-secret", "");
+
+            if (secret.isEmpty())
+            {
+                System.err.println("--peer-secret is required to link with other servers, not linking");
+            } else
+            {
+                federation = new Federation(getOption("node", "node-" + peerPort), InetAddress.getByName(getOption("peer-bind", "127.0.0.1")), peerPort, secret,
+                        peers.isEmpty() ? Collections.emptyList() : Arrays.asList(peers.split("\\s*,\\s*")), timers);
+                Metrics.gauge("federation_links", federation::linkCount);
+            }
+        }
+
+        try
+        {
+            serve(getOption("mode", "blocking"));
+        } finally
+        {
+            Log.shutdown(1000);
+        }
+    }
+
+    /**
+     * Listens on the configured port and serves clients until the server stops.
+     */
+    static void serve(String mode) throws IOException
+    {
+        serving = Thread.currentThread();
+
+        if (mode.equals("nio"))
+            runNonBlocking();
+        else if (mode.equals("blocking"))
+            runBlocking();
+        else
+            System.err.println("Unknown server mode \"" + mode + "\", expected \"blocking\" or \"nio\"");
+    }
+
+    /**
+     * Applies the options and sets up the history, channels and timers, without listening for anything. Connections
+     * created after this can be driven directly, which is how the benchmarks exercise the server in memory. Calling
+     * it again stops the timers, search index and history log it started last time before replacing them.
+     */
+    static void configure(String[] args) throws IOException
+    {
+        options = Utils.parseOptions(args);
+        Log.configure();
+        PORT = getOption("port", PORT);
+        queueHighWaterMark = getOption("queue-high", queueHighWaterMark);
+        queueLowWaterMark = getOption("queue-low", queueLowWaterMark);
+        slowConsumerTimeout = getOption("slow-consumer-timeout", (int) (slowConsumerTimeout / 1000000L)) * 1000000L;
+        messageHistory = new MessageHistory(getOption("history", 1000), getOption("history-bytes", 512 * 1024));
+        replayCount = getOption("replay", replayCount);
+        channelHistory = getOption("channel-history", channelHistory);
+        channelHistoryBytes = getOption("channel-history-bytes", channelHistoryBytes);
+        maxChannels = getOption("max-channels", maxChannels);
+        compression = getOption("compression", Compression.DEFLATE).equals(Compression.DEFLATE);
+        compressionLevel = Math.max(1, Math.min(9, getOption("compression-level", compressionLevel)));
+        floodMessages = getOption("flood-messages", floodMessages);
+        floodMessageBurst = getOption("flood-burst", floodMessageBurst);
+        floodBytes = getOption("flood-bytes", floodBytes);
+        floodByteBurst = getOption("flood-bytes-burst", floodByteBurst);
+        floodKickDelay = getOption("flood-kick", (int) (floodKickDelay / 1000000L)) * 1000000L;
+        shutdownTimeout = getOption("shutdown-timeout", (int) (shutdownTimeout / 1000000L)) * 1000000L;
+        int broadcastBytes = getOption("broadcast-bytes", 0);
+        broadcastLimit = TokenBucket.perSecond(broadcastBytes, broadcastBytes);
+        channels.put(DEFAULT_CHANNEL, new Channel(DEFAULT_CHANNEL, messageHistory));
+
+        String historyDir = getOption("history-dir", (String) null);
+        int searchable = getOption("search-index", 100000);
+
+        if (searchIndex != null)
+            searchIndex.close();
+
+        searchIndex = searchable > 0 ? new SearchIndex(searchable) : null;
+
+        if (historyLog != null)
+        {
+            historyLog.close(Math.max(1000, shutdownTimeout / 1000000L));
+            historyLog = null;
+        }
+
+        if (historyDir != null)
+        {
+            historyLog = new HistoryLog(new File(historyDir), getOption("history-segment-bytes", 16 * 1024 * 1024), getOption("history-segments", 8),
+                    HistoryLog.parseFsyncPolicy(getOption("history-fsync", "interval")), getOption("history-fsync-interval", 1000));
+
+            // the history keeps only the newest of these, while the search index can take more
+            for (ByteBuffer record : historyLog.readLast(Math.max(getOption("history", 1000), searchable)))
+            {
+                Frame frame = new Frame(record);
+                messageHistory.add(frame);
+
+                if (searchIndex != null)
+                    searchIndex.add(frame);
+            }
+
+            Log.info(Log.Category.HISTORY, "loaded history", "messages", messageHistory.size(), "dir", historyDir);
+        }
+
+        if (getOption("threads", "platform").equals("virtual"))
+        {
+            ThreadFactory virtual = Utils.virtualThreadFactory();
+
+            if (virtual != null)
+            {
+                threadFactory = virtual;
+                threadType = "virtual";
+            } else
+                System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+        }
+
+        if (timers != null)
+            timers.stop();
+
+        timers = new TimingWheel(100, Server::newThread);
+
+        Metrics.gauge("users", users::size);
+        Metrics.gauge("channels", channels::size);
+        Metrics.gauge("history_messages", messageHistory::size);
+        Metrics.gauge("history_bytes", messageHistory::bytes);
+
+        if (searchIndex != null)
+        {
+            Metrics.gauge("search_index_messages", searchIndex::size);
+            Metrics.gauge("search_index_keys", searchIndex::keys);
+        }
+
+        Metrics.gauge("backlog_bytes", () -> {
+            long total = 0;
+
+            for (Connection connection : users.connections())
+                total += connection.outbound.queuedBytes();
+
+            return total;
+        });
+        Metrics.gauge("backlog_max_bytes", () -> {
+            long max = 0;
+
+            for (Connection connection : users.connections())
+                max = Math.max(max, connection.outbound.queuedBytes());
+
+            return max;
+        });
+        Metrics.gauge("congested_connections", () -> users.connections().stream().filter(connection -> connection.outbound.congestedSince() != 0L).count());
+        Metrics.startSampling(timers);
+    }
+
+    private static void runBlocking() throws IOException
+    {
+        Log.info(Log.Category.SERVER, "The chat server is running", "port", PORT, "mode", "blocking", "threads", threadType);
+        ServerSocket listener = new ServerSocket(PORT);
+        acceptor = listener;
+        try
+        {
+            while (isRunning())
+            {
+                Socket socket;
+
+                try
+                {
+                    socket = listener.accept();
+                } catch (SocketException e)
+                {
+                    // closed by stop()
+                    if (!isRunning())
+                        break;
+
+                    throw e;
+                }
+
+                newThread(new Handler(socket)).start();
+            }
+        } finally
+        {
+            listener.close();
+            shutdown();
+        }
+    }
+
+    private static void runNonBlocking() throws IOException
+    {
+        int loops = getOption("loops", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+        Log.info(Log.Category.SERVER, "The chat server is running", "port", PORT, "mode", "nio", "loops", loops);
+        NioServer server = new NioServer(PORT, loops);
+        acceptor = server::stopAccepting;
+        try
+        {
+            server.start();
+
+            while (isRunning())
+                LockSupport.park(server);
+        } finally
+        {
+            server.stopAccepting();
+            shutdown();
+            server.close();
+        }
+    }
+
+    /**
+     * Drains every connection at once within the shutdown timeout. Clients are told the server is closing and each
+     * connection is closed once what is queued for it has been written, by its own writer, so one slow or dead
+     * client holds up nobody else. Whoever is still connected at the deadline is cut off. The history log is flushed
+     * to disk alongside, and is waited for even if the connections took the whole timeout.
+     */
+    private static void shutdown()
+    {
+        long start = System.nanoTime();
+        long deadline = start + shutdownTimeout;
+        Log.info(Log.Category.SERVER, "shutting down", "connections", openConnections.size(), "timeout_ms", shutdownTimeout / 1000000L);
+
+        deliverToAll("SERVER", "Server is shutting down", true);
+
+        if (federation != null)
+            federation.close();
+
+        Thread flusher = null;
+
+        if (historyLog != null)
+        {
+            flusher = newThread(() -> historyLog.close(Math.max(1000, shutdownTimeout / 1000000L)));
+            flusher.start();
+        }
+
+        for (Connection connection : openConnections)
+        {
+            connection.sendUrgent("SERVER_CLOSING");
+            connection.disconnect("server shutting down");
+            connection.close();
+        }
+
+        while (!openConnections.isEmpty() && System.nanoTime() < deadline)
+            LockSupport.parkNanos(10000000L);
+
+        int remaining = openConnections.size();
+
+        for (Connection connection : openConnections)
+            connection.abort();
+
+        if (remaining > 0)
+            Log.warn(Log.Category.SERVER, "closed connections that did not drain in time", "connections", remaining);
+
+        if (flusher != null)
+        {
+            try
+            {
+                flusher.join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (searchIndex != null)
+            searchIndex.close();
+
+        Metrics.stopHttp();
+        timers.stop();
+        Log.info(Log.Category.SERVER, "shut down", "elapsed_ms", (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * Creates a thread of the configured type. Virtual threads do not block their carrier on socket I/O, so
+     * blocking handlers stay cheap as long as they never wait while holding a monitor.
+     */
+    public static Thread newThread(Runnable runnable)
+    {
+        return threadFactory.newThread(runnable);
+    }
+
+    public static String getOption(String name, String defaultValue)
+    {
+        String value = options.get(name);
+
+        if (value == null)
+            value = System.getProperty("tinyirc." + name);
+
+        return value != null ? value : defaultValue;
+    }
+
+    public static int getOption(String name, int defaultValue)
+    {
+        String value = getOption(name, (String) null);
+
+        try
+        {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException e)
+        {
+            System.err.println("Invalid value \"" + value + "\" for option \"" + name + "\", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Sends a message to every user in the network, relaying it to linked servers.
+     */
+    public static boolean sendToAll(String from, String message, boolean log)
+    {
+        if (!deliverToAll(from, message, log))
+            return false;
+
+        if (federation != null)
+            federation.relayBroadcast(from, message);
+
+        return true;
+    }
+
+    /**
+     * Sends a message to every user on this server only.
+     */
+    static boolean deliverToAll(String from, String message, boolean log)
+    {
+        if (message == null || message.isEmpty())
+            return false;
+
+        long start = System.nanoTime();
+        Frame frame = encode("MESSAGE[" + from + "]" + message);
+
+        // a user who has not joined the main channel yet gets this from the replay instead
+        int recipients = channels.get(DEFAULT_CHANNEL).broadcast(frame, users.connections(), connection -> connection.receivingBroadcasts);
+
+        if (historyLog != null)
+            historyLog.append(frame.text());
+
+        if (searchIndex != null)
+            searchIndex.add(frame);
+
+        long latency = (System.nanoTime() - start) / 1000;
+        Metrics.broadcasts.increment();
+        Metrics.deliveries.add(recipients);
+        Metrics.broadcastLatency.record(latency);
+
+        if (log && Log.isEnabled(Log.Level.INFO, Log.Category.CHAT))
+            Log.info(Log.Category.CHAT, "broadcast", "from", from, "to", "*", "bytes", frame.size(), "recipients", recipients, "latency_us", latency, "text", message);
+
+        return true;
+    }
+
+    /**
+     * Sends a private message to a user on this server, or relays it to the linked server the user is on.
+     */
+    public static boolean sendTo(String from, String to, String message, boolean log)
+    {
+        if (deliverTo(from, to, message, log))
+            return true;
+
+        return message != null && !message.isEmpty() && federation != null && federation.relayPrivate(from, to, message);
+    }
+
+    static boolean deliverTo(String from, String to, String message, boolean log)
+    {
+        Connection connection;
+
+        if (message == null || message.isEmpty() || (connection = users.get(to)) == null || connection.username == null)
+            return false;
+
+        Frame frame = encode("MESSAGE[" + from + "]" + message);
+        connection.send(frame);
+
+        if (log && Log.isEnabled(Log.Level.INFO, Log.Category.CHAT))
+            Log.info(Log.Category.CHAT, "private", "from", from, "to", to, "bytes", frame.size(), "text", message);
+
+        return true;
+    }
+
+    /**
+     * Sends a message to the members of one channel. Messages to the default channel are sent as plain
+     * {@code MESSAGE[from]body} lines, so clients that know nothing about channels keep working; every other
+     * channel uses {@code CHANNEL_MESSAGE[#channel][from]body}. The message is relayed to linked servers, so a channel
+     * spans the whole network.
+     */
+    public static boolean sendToChannel(String name, String from, String message, boolean log)
+    {
+        if (message == null || message.isEmpty())
+            return false;
+
+        if (federation != null)
+            federation.relayChannel(name, from, message);
+
+        return deliverToChannel(name, from, message, log);
+    }
+
+    /**
+     * Sends a message to the members of a channel on this server only.
+     */
+    static boolean deliverToChannel(String name, String from, String message, boolean log)
+    {
+        Channel channel;
+
+        if (message == null || message.isEmpty() || (channel = channels.get(name)) == null)
+            return false;
+
+        long start = System.nanoTime();
+        Frame frame = encode(name.equals(DEFAULT_CHANNEL) ? "MESSAGE[" + from + "]" + message : "CHANNEL_MESSAGE[" + name + "][" + from + "]" + message);
+        int recipients = channel.broadcast(frame);
+
+        if (historyLog != null && name.equals(DEFAULT_CHANNEL))
+            historyLog.append(frame.text());
+
+        if (searchIndex != null && name.equals(DEFAULT_CHANNEL))
+            searchIndex.add(frame);
+
+        long latency = (System.nanoTime() - start) / 1000;
+        Metrics.channelMessages.increment();
+        Metrics.deliveries.add(recipients);
+        Metrics.channelLatency.record(latency);
+
+        if (log && Log.isEnabled(Log.Level.INFO, Log.Category.CHAT))
+            Log.info(Log.Category.CHAT, "channel", "from", from, "to", name, "bytes", frame.size(), "recipients", recipients, "latency_us", latency, "text", message);
+
+        return true;
+    }
+
+    /**
+     * Encodes a protocol line once into a read-only frame that can be handed to any number of connections with
+     * {@link Connection#send(Frame)}. Heap buffers are used rather than direct ones, since allocating direct memory
+     * for every chat line costs more than the copy the channel makes when writing from the heap.
+     */
+    public static Frame encode(String line)
+    {
+        return Frame.of(line);
+    }
+
+    /**
+     * Kicks a local user, if they are connected.
+     */
+    static void kick(String name, String reason)
+    {
+        Connection connection = users.get(name);
+
+        if (connection != null)
+            connection.kick(reason);
+    }
+
+    public static boolean isRunning()
+    {
+        return running;
+    }
+
+    public static void setRunning(boolean running)
+    {
+        if (running)
+            Server.running = true;
+        else
+            stop();
+    }
+
+    /**
+     * Stops accepting connections and wakes the thread serving them, which then shuts the server down. May be called
+     * from any thread, any number of times.
+     */
+    public static void stop()
+    {
+        running = false;
+        Closeable acceptor = Server.acceptor;
+
+        if (acceptor != null)
+        {
+            try
+            {
+                acceptor.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        Thread serving = Server.serving;
+
+        if (serving != null)
+            LockSupport.unpark(serving);
+    }
+
+    /**
+     * The protocol state of a single client, independent of how its socket is serviced. Implementations deliver
+     * whatever bytes they read with {@link #receive(ByteBuffer)} and {@link #endOfStream()}, drain {@link #outbound}
+     * whenever {@link #writeReady()} is called, and call {@link #closed()} once the underlying socket is gone.
+     * <p>
+     * Every connection starts on the text protocol and may switch to {@link Protocol binary framing} before its
+     * name is accepted. Both framings are decoded here, so socket implementations never need to know which one a
+     * client is using.
+     * <p>
+     * Senders only ever append to the outbound queue, so a client that stops reading holds up nobody but itself.
+     * Once its backlog passes the high water mark it misses messages until it catches up, and if it stays behind
+     * for longer than the slow consumer timeout it is kicked.
+     * <p>
+     * State shared with the timer thread is volatile rather than guarded by monitors, so a virtual thread running
+     * a connection is never pinned to its carrier.
+     */
+    static abstract class Connection
+    {
+        protected volatile String username;
+        private volatile boolean connected;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private long timeConnected;
+        private volatile long lastPingReceived;
+        private volatile long lastMessage;
+        private volatile TimingWheel.Timeout pingTimer;
+        private volatile TimingWheel.Timeout livenessTimer;
+        private volatile TimingWheel.Timeout inactivityTimer;
+
+        protected volatile String leaveMessage = null;
+        /** Set while the name this client asked for is being checked with linked servers. */
+        private volatile boolean claiming;
+
+        private final TokenBucket messageLimit = TokenBucket.perSecond(floodMessages, floodMessageBurst);
+        private final TokenBucket byteLimit = TokenBucket.perSecond(floodBytes, floodByteBurst);
+        /** Time until which the socket should not be read, because the client has been sending too much. */
+        private long throttledUntil;
+        protected volatile Protocol.Framing framing = Protocol.Framing.TEXT;
+        /** Set once the client has asked for sequence numbers on messages kept in history. */
+        protected volatile boolean sequenced;
+        /** Sequence number in the main history the client asked to resume from, or -1 for the usual replay. */
+        private long resumeFrom = -1;
+        /** Set once the client has joined the main channel, which holds broadcasts for it until its replay is queued. */
+        private volatile boolean receivingBroadcasts;
+        /** Given to a client that resumes, so that when it reconnects it can take its name back from this connection. */
+        private volatile String resumeToken;
+        /** The token the client gave when resuming, from its previous connection. */
+        private String previousToken;
+
+        /** The incomplete line or frame carried over from the previous read. */
+        private byte[] partial = new byte[128];
+        private int partialLength;
+
+        /**
+         * Queued where the outbound stream switches to deflate. Writers recognise it by identity, and compress
+         * everything queued after it with {@link #newDeflater()}.
+         */
+        protected static final ByteBuffer START_DEFLATE = ByteBuffer.allocate(0);
+
+        /** Set once the client has switched to compressing what it sends. Only used by the reading thread. */
+        private Inflater inflater;
+        private byte[] inflated;
+        private ByteBuffer inflatedBuffer;
+
+        protected final OutboundQueue outbound = new OutboundQueue(queueHighWaterMark, queueLowWaterMark);
+        private final Set<String> joined = ConcurrentHashMap.newKeySet();
+
+        protected Connection()
+        {
+            this.connected = true;
+            this.timeConnected = System.nanoTime();
+            this.lastPingReceived = System.nanoTime();
+            this.lastMessage = System.nanoTime();
+        }
+
+        /**
+         * Signals the writer that {@link #outbound} has something to write. May be called from any thread.
+         */
+        protected abstract void writeReady();
+
+        /**
+         * Closes the underlying socket once everything already queued has been written.
+         */
+        public abstract void close();
+
+        /**
+         * Closes the underlying socket immediately, discarding anything still queued.
+         */
+        public abstract void abort();
+
+        public abstract SocketAddress getRemoteAddress();
+
+        /**
+         * Queues a single protocol line for this client without waiting for it to be written.
+         */
+        public void send(String line)
+        {
+            enqueue(encodeLine(line), false);
+        }
+
+        /**
+         * Queues a control line that must not be dropped because the client is congested.
+         */
+        public void sendUrgent(String line)
+        {
+            enqueue(encodeLine(line), true);
+        }
+
+        /**
+         * Queues a frame from {@link Server#encode(String)} in whichever framing this client uses. The frame itself is
+         * shared with other recipients and is never modified; each connection writes from its own view of it.
+         */
+        public void send(Frame frame)
+        {
+            enqueue(frame.encoded(framing, sequenced).duplicate(), false);
+        }
+
+        private ByteBuffer encodeLine(String line)
+        {
+            if (framing == Protocol.Framing.BINARY)
+                return Protocol.toBinary(line);
+
+            return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        protected void enqueue(ByteBuffer buffer, boolean urgent)
+        {
+            if (urgent ? outbound.offerUrgent(buffer) : outbound.offer(buffer))
+                writeReady();
+            else
+                checkSlowConsumer(System.nanoTime());
+        }
+
+        private void checkSlowConsumer(long now)
+        {
+            long congestedSince = outbound.congestedSince();
+
+            if (congestedSince != 0L && now - congestedSince > slowConsumerTimeout && isConnected())
+            {
+                Metrics.slowConsumers.increment();
+                Log.warn(Log.Category.CONNECTION, "evicting slow consumer", "user", username, "queued", outbound.queuedBytes(), "dropped", outbound.dropped());
+                disconnect("too slow to keep up");
+                sendUrgent("KICKED too slow to keep up");
+                abort();
+            }
+        }
+
+        protected void opened()
+        {
+            openConnections.add(this);
+            Metrics.connectionsOpened.increment();
+            Log.info(Log.Category.CONNECTION, "connected", "remote", getRemoteAddress());
+
+            // accepted just as the server was shutting down, so missed being drained with the rest
+            if (!isRunning())
+            {
+                sendUrgent("SERVER_CLOSING");
+                disconnect("server shutting down");
+                close();
+                return;
+            }
+
+            requestName();
+        }
+
+        /**
+         * Asks for a name, advertising binary framing, compression and resuming to clients that can still take them
+         * up.
+         */
+        private void requestName()
+        {
+            if (framing == Protocol.Framing.BINARY)
+            {
+                send("SUBMIT_NAME");
+                return;
+            }
+
+            String offers = "SUBMIT_NAME FRAMING=binary";
+
+            if (compression && inflater == null)
+                offers += " COMPRESS=" + Compression.DEFLATE;
+
+            if (!sequenced)
+                offers += " RESUME=" + historyEpoch;
+
+            send(offers);
+        }
+
+        /**
+         * Decodes bytes read from the socket, dispatching every complete line or frame. Anything left over is kept
+         * until the next read. If a client switches framing, the rest of the buffer is decoded in the new framing.
+         *
+         * @return false if the client sent a line or frame longer than {@link Protocol#MAX_FRAME_SIZE}, in which case
+         * it has been disconnected.
+         */
+        protected boolean receive(ByteBuffer bytes)
+        {
+            Metrics.bytesReceived.add(bytes.remaining());
+            return inflater != null ? inflate(bytes) : decode(bytes, false);
+        }
+
+        private boolean decode(ByteBuffer bytes, boolean inflating)
+        {
+            while (bytes.hasRemaining() && isConnected())
+            {
+                // the client compresses everything after its COMPRESS line, which may be in this same read
+                if (!inflating && inflater != null)
+                    return inflate(bytes);
+
+                if (framing == Protocol.Framing.TEXT)
+                {
+                    int end = bytes.position();
+
+                    while (end < bytes.limit() && bytes.get(end) != '\n')
+                        end++;
+
+                    if (!append(bytes, end - bytes.position()))
+                        return false;
+
+                    if (!bytes.hasRemaining())
+                        break;
+
+                    bytes.get(); // the newline
+                    int length = partialLength;
+                    partialLength = 0;
+
+                    if (length > 0 && partial[length - 1] == '\r')
+                        length--;
+
+                    receiveLine(partial, length);
+                } else
+                {
+                    if (partialLength < 4)
+                    {
+                        append(bytes, Math.min(bytes.remaining(), 4 - partialLength));
+                        continue;
+                    }
+
+                    int length = (partial[0] & 0xFF) << 24 | (partial[1] & 0xFF) << 16 | (partial[2] & 0xFF) << 8 | partial[3] & 0xFF;
+
+                    if (length < 1 || length > Protocol.MAX_FRAME_SIZE)
+                    {
+                        disconnect("invalid frame length");
+                        return false;
+                    }
+
+                    append(bytes, Math.min(bytes.remaining(), 4 + length - partialLength));
+
+                    if (partialLength == 4 + length)
+                    {
+                        partialLength = 0;
+                        receiveFrame(partial[4], partial, length - 1);
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        private boolean inflate(ByteBuffer bytes)
+        {
+            if (bytes.hasArray())
+            {
+                inflater.setInput(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            } else
+            {
+                byte[] copy = new byte[bytes.remaining()];
+                bytes.duplicate().get(copy);
+                inflater.setInput(copy);
+            }
+
+            // the inflater refers to the caller's buffer, so it is drained completely before returning
+            bytes.position(bytes.limit());
+
+            try
+            {
+                while (isConnected())
+                {
+                    int length = inflater.inflate(inflated);
+
+                    if (length == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                        break;
+
+                    inflatedBuffer.clear();
+                    inflatedBuffer.limit(length);
+
+                    if (!decode(inflatedBuffer, true))
+                        return false;
+                }
+            } catch (DataFormatException e)
+            {
+                disconnect("invalid compressed data");
+                return false;
+            }
+
+            return true;
+        }
+
+        private boolean append(ByteBuffer bytes, int length)
+        {
+            if (partialLength + length > Protocol.MAX_FRAME_SIZE + 4)
+            {
+                disconnect("line too long");
+                return false;
+            }
+
+            if (partialLength + length > partial.length)
+                partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+
+            bytes.get(partial, partialLength, length);
+            partialLength += length;
+            return true;
+        }
+
+        /**
+         * Called when the client closes its end of the socket. A client that goes away while choosing a name is
+         * treated as having cancelled.
+         */
+        protected void endOfStream()
+        {
+            if (username == null && isConnected())
+                submitName(null);
+        }
+
+        /**
+         * Dispatches a binary frame whose payload is the first {@code length} bytes after the header in
+         * {@code frame}. Heartbeats and disconnects are handled without decoding anything, so they allocate nothing.
+         */
+        private void receiveFrame(byte type, byte[] frame, int length)
+        {
+            if (!charge(type != Protocol.PING, Protocol.HEADER_SIZE + length))
+                return;
+
+            if (username != null)
+            {
+                if (type == Protocol.PING)
+                {
+                    lastPingReceived = System.nanoTime();
+                    return;
+                }
+
+                if (type == Protocol.DISCONNECT)
+                {
+                    disconnect("leaving");
+                    return;
+                }
+            }
+
+            String[] fields = Protocol.decode(type, ByteBuffer.wrap(frame, Protocol.HEADER_SIZE, length));
+
+            if (fields == null)
+            {
+                Log.debug(Log.Category.CONNECTION, "malformed frame", "remote", getRemoteAddress(), "type", type);
+                return;
+            }
+
+            if (username == null)
+            {
+                if (type == Protocol.NAME)
+                    submitName(fields[0]);
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            // bodies are kept in their escaped text form, since that is what history and text clients expect
+            switch (type)
+            {
+                case Protocol.JOIN:
+                    join(fields[0].trim());
+                    break;
+                case Protocol.PART:
+                    partChannel(fields[0].trim(), true);
+                    break;
+                case Protocol.CHAT:
+                    chat(DEFAULT_CHANNEL, Protocol.escape(fields[0]), now);
+                    break;
+                case Protocol.CHANNEL_CHAT:
+                    chat(fields[0], Protocol.escape(fields[1]), now);
+                    break;
+                case Protocol.SEARCH:
+                    search(fields[0].trim());
+                    break;
+                default:
+                    Log.debug(Log.Category.CONNECTION, "unknown frame type", "remote", getRemoteAddress(), "type", type);
+            }
+        }
+
+        /**
+         * Dispatches a text line held in the first {@code length} bytes of {@code line}. The command is identified
+         * from the raw bytes, and only its arguments are ever decoded, so heartbeats and disconnects allocate
+         * nothing.
+         */
+        private void receiveLine(byte[] line, int length)
+        {
+            if (username == null)
+            {
+                if (!charge(true, length + 1))
+                    return;
+
+                String text = new String(line, 0, length, StandardCharsets.UTF_8);
+
+                if (text.startsWith("FRAMING "))
+                    negotiateFraming(text.substring("FRAMING ".length()).trim());
+                else if (text.startsWith("COMPRESS "))
+                    negotiateCompression(text.substring("COMPRESS ".length()).trim());
+                else if (text.equals("RESUME") || text.startsWith("RESUME "))
+                    negotiateResume(text.substring("RESUME".length()).trim());
+                else
+                    submitName(text);
+                return;
+            }
+
+            byte type = Protocol.requestType(line, length);
+            int start = Protocol.requestPrefixLength(type);
+
+            if (!charge(type != Protocol.PING, length + 1))
+                return;
+
+            long now = System.nanoTime();
+
+            switch (type)
+            {
+                case Protocol.PING:
+                    lastPingReceived = now;
+                    break;
+                case Protocol.DISCONNECT:
+                    disconnect("leaving");
+                    break;
+                case Protocol.JOIN:
+                    join(new String(line, start, length - start, StandardCharsets.UTF_8).trim());
+                    break;
+                case Protocol.PART:
+                    partChannel(new String(line, start, length - start, StandardCharsets.UTF_8).trim(), true);
+                    break;
+                case Protocol.SEARCH:
+                    search(new String(line, start, length - start, StandardCharsets.UTF_8).trim());
+                    break;
+                case Protocol.CHANNEL_CHAT:
+                    int split = start;
+
+                    while (split < length && line[split] != ' ')
+                        split++;
+
+                    String name = new String(line, start, split - start, StandardCharsets.UTF_8);
+                    chat(name, split < length ? new String(line, split + 1, length - split - 1, StandardCharsets.UTF_8) : "", now);
+                    break;
+                default:
+                    int offset = Protocol.chatOffset(line, length);
+                    chat(DEFAULT_CHANNEL, new String(line, offset, length - offset, StandardCharsets.UTF_8), now);
+            }
+        }
+
+        /**
+         * Switches both directions to deflate at the client's request. The client compresses everything after its
+         * request, so anything it sends from here on is inflated first; the reply is the last thing sent to it
+         * uncompressed. Compression cannot be turned on after switching to binary framing or choosing a name, and
+         * since nothing more the client sends could be read, a request that was never offered ends the connection.
+         */
+        private void negotiateCompression(String requested)
+        {
+            if (!compression || inflater != null || !requested.equalsIgnoreCase(Compression.DEFLATE))
+            {
+                send("COMPRESS_ACCEPTED none");
+                disconnect("unsupported compression");
+                close();
+                return;
+            }
+
+            send("COMPRESS_ACCEPTED " + Compression.DEFLATE);
+            enqueue(START_DEFLATE, true);
+
+            inflater = Compression.newInflater();
+            inflated = new byte[8192];
+            inflatedBuffer = ByteBuffer.wrap(inflated);
+
+            Log.debug(Log.Category.HANDSHAKE, "compression negotiated", "remote", getRemoteAddress(), "compression", Compression.DEFLATE);
+        }
+
+        /**
+         * Creates the deflater for the outbound stream once a writer reaches {@link #START_DEFLATE}. Whoever calls
+         * this owns the deflater and must {@link Deflater#end() end} it when the connection closes.
+         */
+        protected Deflater newDeflater()
+        {
+            return Compression.newDeflater(compressionLevel);
+        }
+
+        private void chat(String name, String message, long now)
+        {
+            if (!joined.contains(name))
+            {
+                send("CHANNEL_DENIED " + name + " Not a member of this channel");
+            } else
+            {
+                Channel channel;
+
+                // the server's fan-out budget is shared, and whoever spends it waits for it to refill
+                if (broadcastLimit != null && (channel = channels.get(name)) != null)
+                    throttle(broadcastLimit.take((long) message.length() * channel.members().size(), now), now);
+
+                sendToChannel(name, username, message, true);
+            }
+
+            lastMessage = now;
+        }
+
+        /**
+         * Handles {@code /SEARCH page query}, answering with one page of the matching messages in the default channel.
+         * A malformed request, or a server with searching turned off, gets an empty page.
+         */
+        private void search(String argument)
+        {
+            long start = System.nanoTime();
+            int space = argument.indexOf(' ');
+            int page = -1;
+
+            try
+            {
+                page = Integer.parseInt(space < 0 ? argument : argument.substring(0, space));
+            } catch (NumberFormatException e)
+            {
+                // an empty page
+            }
+
+            List<Frame> hits = Collections.emptyList();
+            int total = 0;
+
+            if (searchIndex != null && space >= 0 && page >= 0)
+            {
+                SearchIndex.Results results = searchIndex.search(argument.substring(space + 1), page);
+                hits = results.hits;
+                total = results.total;
+            }
+
+            send("SEARCH_RESULTS " + total + " " + Math.max(0, page) + " " + hits.size());
+
+            for (Frame hit : hits)
+                send("SEARCH_HIT " + hit.line());
+
+            long latency = (System.nanoTime() - start) / 1000;
+            Metrics.searchLatency.record(latency);
+            Log.debug(Log.Category.CHAT, "search", "user", username, "query", argument, "results", total, "latency_us", latency);
+        }
+
+        /**
+         * Charges a received command to this client's flood limits. Heartbeats only count towards the byte limit.
+         * A client over its limits is throttled by not reading from it until it is back within them, and one that
+         * has sent so much that it would be throttled for longer than the kick delay is kicked.
+         *
+         * @return false if the client was kicked, and the command should be ignored.
+         */
+        private boolean charge(boolean command, int bytes)
+        {
+            long now = System.nanoTime();
+            Metrics.commandsReceived.increment();
+            long delay = 0;
+
+            if (command && messageLimit != null)
+                delay = messageLimit.take(1, now);
+
+            if (byteLimit != null)
+                delay = Math.max(delay, byteLimit.take(bytes, now));
+
+            if (delay > floodKickDelay && isConnected())
+            {
+                Log.warn(Log.Category.CONNECTION, "kicking flooder", "remote", getRemoteAddress(), "user", username, "throttle_ms", delay / 1000000L);
+                kick("flooding");
+                return false;
+            }
+
+            throttle(delay, now);
+            return true;
+        }
+
+        private void throttle(long delay, long now)
+        {
+            if (delay > 0)
+                throttledUntil = Math.max(throttledUntil, now + delay);
+        }
+
+        /**
+         * How long the socket layer should wait before reading from this client again. Only called from the thread
+         * that reads the socket.
+         */
+        protected long throttleDelay()
+        {
+            return Math.max(0, throttledUntil - System.nanoTime());
+        }
+
+        /**
+         * Runs a task on the server's timer thread after a delay.
+         */
+        protected TimingWheel.Timeout schedule(Runnable task, long delay)
+        {
+            return timers.schedule(task, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Switches framing at the client's request. The reply is still sent in text, so the client knows exactly
+         * where the new framing begins; anything else it does not support is answered with the framing it keeps.
+         */
+        private void negotiateFraming(String requested)
+        {
+            if (requested.equalsIgnoreCase("binary"))
+            {
+                send("FRAMING_ACCEPTED binary");
+                framing = Protocol.Framing.BINARY;
+            } else
+            {
+                send("FRAMING_ACCEPTED text");
+            }
+
+            Log.debug(Log.Category.HANDSHAKE, "framing negotiated", "remote", getRemoteAddress(), "framing", framing);
+        }
+
+        /**
+         * Turns on sequence numbers at the client's request. A client that is reconnecting also says where in the
+         * main history to resume from, and gives the token from its previous connection so it can take its name
+         * back if that connection has not timed out yet. The history itself is sent once the name is accepted.
+         */
+        private void negotiateResume(String arguments)
+        {
+            sequenced = true;
+            String[] fields = arguments.isEmpty() ? new String[0] : arguments.split(" +");
+
+            if (fields.length > 0)
+            {
+                try
+                {
+                    resumeFrom = Math.max(-1, Long.parseLong(fields[0]));
+                } catch (NumberFormatException e)
+                {
+                    resumeFrom = -1;
+                }
+            }
+
+            if (fields.length > 1)
+                previousToken = fields[1];
+
+            send("RESUME_ACCEPTED " + historyEpoch);
+            Log.debug(Log.Category.HANDSHAKE, "resume negotiated", "remote", getRemoteAddress(), "from", resumeFrom);
+        }
+
+        /**
+         * Handles {@code /JOIN #channel}, or {@code /JOIN #channel n} to resume the channel's history from sequence
+         * number {@code n}.
+         */
+        private void join(String argument)
+        {
+            int space = argument.indexOf(' ');
+            long from = -1;
+
+            if (space >= 0)
+            {
+                try
+                {
+                    from = Long.parseLong(argument.substring(space + 1).trim());
+                } catch (NumberFormatException e)
+                {
+                    // the usual replay
+                }
+
+                argument = argument.substring(0, space);
+            }
+
+            joinChannel(argument, true, from);
+        }
+
+        /**
+         * @param from the sequence number to resume the channel's history from, or -1 for the usual replay.
+         */
+        private void joinChannel(String name, boolean announce, long from)
+        {
+            if (!Channel.isValidName(name))
+            {
+                send("CHANNEL_DENIED " + name + " Channel names must be a '#' followed by up to 32 letters, digits, '-' or '_'");
+                return;
+            }
+
+            if (joined.size() >= maxChannels && !joined.contains(name))
+            {
+                send("CHANNEL_DENIED " + name + " Already in the maximum (" + maxChannels + ") number of channels");
+                return;
+            }
+
+            Channel channel;
+
+            while (true)
+            {
+                channel = channels.computeIfAbsent(name, key -> new Channel(key, new MessageHistory(channelHistory, channelHistoryBytes, channelSequences.addAndGet(1L << 32))));
+
+                if (!channel.add(this))
+                    return;
+
+                // the last member may have left and dropped the channel just before this one got in
+                if (channels.get(name) == channel)
+                    break;
+
+                channel.remove(this);
+            }
+
+            joined.add(name);
+            send("JOINED " + name);
+
+            if (name.equals(DEFAULT_CHANNEL))
+                receivingBroadcasts = true;
+
+            // broadcasts are held for this member until the replay is queued, and the channel drops any it contained
+            channel.replayed(this, replayHistory(channel.history(), from));
+
+            Metrics.channelJoins.increment();
+
+            if (announce)
+                sendToChannel(name, "SERVER", username + " has joined " + name, true);
+        }
+
+        private void partChannel(String name, boolean announce)
+        {
+            if (!joined.remove(name))
+            {
+                send("CHANNEL_DENIED " + name + " Not a member of this channel");
+                return;
+            }
+
+            Metrics.channelParts.increment();
+
+            // the default channel is kept even when empty, since it holds the main history
+            channels.computeIfPresent(name, (key, channel) -> channel.remove(this) && channel.isEmpty() && !key.equals(DEFAULT_CHANNEL) ? null : channel);
+
+            if (announce)
+            {
+                send("PARTED " + name);
+                sendToChannel(name, "SERVER", username + " has left " + name, true);
+            }
+        }
+
+        private void submitName(String name)
+        {
+            if (name == null || name.equals("\0"))
+            {
+                Log.info(Log.Category.HANDSHAKE, "cancelled", "remote", getRemoteAddress());
+                disconnect(null);
+                close();
+                return;
+            }
+
+            Log.debug(Log.Category.HANDSHAKE, "received username", "remote", getRemoteAddress(), "name", name);
+
+            boolean alphanumeric = Utils.isAlphanumeric(name = name.trim());
+
+            if (name.isEmpty() || name.length() > 32 || !alphanumeric)
+            {
+                if (name.isEmpty())
+                    send("NAME_DENIED No name specified");
+                if (name.length() > 32)
+                    send("NAME_DENIED Name was longer than the maximum (32) character limit");
+                if (!alphanumeric)
+                    send("NAME_DENIED Name must contain only alphanumeric characters, and no spaces.");
+
+                Log.info(Log.Category.HANDSHAKE, "username denied, invalid name", "remote", getRemoteAddress(), "name", name);
+                requestName();
+                return;
+            }
+
+            if (claiming)
+            {
+                Log.debug(Log.Category.HANDSHAKE, "ignored name while another is being claimed", "remote", getRemoteAddress(), "name", name);
+                return;
+            }
+
+            if (!users.claim(name, this))
+            {
+                if (takeOver(name))
+                    acceptName(name);
+                else
+                    denyName(name);
+                return;
+            }
+
+            if (federation == null)
+            {
+                acceptName(name);
+                return;
+            }
+
+            // the name also has to be free on every linked server, which may take a round trip
+            String claimed = name;
+            claiming = true;
+
+            federation.claim(claimed, accepted -> {
+                claiming = false;
+
+                if (accepted && isConnected())
+                {
+                    acceptName(claimed);
+                    return;
+                }
+
+                users.release(claimed, this);
+
+                if (accepted)
+                    federation.release(claimed);
+                else
+                    denyName(claimed);
+            });
+        }
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.*;
+        /**
+         * Takes a name from a connection of this client's that has dropped but not timed out yet, if the client
+         * proved it owns that connection by giving its token. The name stays claimed on linked servers throughout.
+         */
+        private boolean takeOver(String name)
+        {
+            Connection previous = users.get(name);
 
-/**
- * @author Kelan
- */
-public class Server
-{
-    private static int PORT = 8088;
-    private static boolean running = true;
+            if (previousToken == null || previous == null || !previousToken.equals(previous.resumeToken) || !users.replace(name, previous, this))
+                return false;
 
-    private static final HashMap<String, Handler> users = new HashMap<>();
-    private static List<Pair<String, String>> messageHistory = new ArrayList<>();
+            Log.info(Log.Category.HANDSHAKE, "took over name from previous connection", "remote", getRemoteAddress(), "name", name, "previous", previous.getRemoteAddress());
+            previous.disconnect("reconnected");
+            previous.abort();
+            return true;
+        }
 
-    public static void main(String[] args) throws IOException
-    {
-        UpdateHandler.startCommandThread();
-        UpdateHandler.startTimeoutThread();
+        private void denyName(String name)
+        {
+            Metrics.namesDenied.increment();
+            send("NAME_DENIED Username is already in use");
+            Log.info(Log.Category.HANDSHAKE, "username denied, already in use", "remote", getRemoteAddress(), "name", name);
+            requestName();
+        }
 
-        System.out.println("The chat server is running.");
-        ServerSocket listener = new ServerSocket(PORT);
-        try
+        private void acceptName(String name)
         {
-            while (isRunning())
+            username = name;
+            Metrics.logins.increment();
+            Metrics.handshakeTime.record((System.nanoTime() - timeConnected) / 1000);
+
+            send("NAME_ACCEPTED " + username);
+
+            if (sequenced)
             {
-                new Thread(new Handler(listener.accept())).start();
+                resumeToken = Long.toHexString(tokens.nextLong()) + Long.toHexString(tokens.nextLong());
+                send("RESUME_TOKEN " + resumeToken);
             }
-        } finally
+            Log.info(Log.Category.HANDSHAKE, "username accepted", "remote", getRemoteAddress(), "user", username);
+
+            startTimers();
+
+            joinChannel(DEFAULT_CHANNEL, false, resumeFrom);
+
+            sendToAll("SERVER", username + " has joined the server!", true);
+        }
+
+        List<Frame> replayHistory(MessageHistory history)
+        {
+            return replayHistory(history, -1);
+        }
+
+        /**
+         * Sends the most recent history as one buffer, so it goes out in as few writes as the socket allows instead
+         * of one flush per message. The copy is made before this user's join is announced, but nothing else waits
+         * on the bytes actually being written.
+         *
+         * @param from the sequence number to resume from, in which case everything kept from there on is sent, or
+         *             -1 to send the usual number of recent messages. The usual replay is also sent if the client
+         *             has missed more than is kept.
+         * @return the messages replayed, oldest first.
+         */
+        List<Frame> replayHistory(MessageHistory history, long from)
         {
-            sendToAll("SERVER", "Server is shutting down", true);
+            List<Frame> frames = from >= 0 ? history.since(from) : null;
 
-            for (Handler handler : users.values())
-                handler.out.println("SERVER_CLOSING");
+            if (frames == null)
+                frames = history.snapshot(replayCount);
 
-            listener.close();
+            if (frames.isEmpty())
+                return frames;
+
+            Protocol.Framing framing = this.framing;
+            boolean sequenced = this.sequenced;
+            int length = 0;
+
+            for (Frame frame : frames)
+                length += frame.encoded(framing, sequenced).remaining();
+
+            ByteBuffer replay = ByteBuffer.allocate(length);
+
+            for (Frame frame : frames)
+                replay.put(frame.encoded(framing, sequenced).duplicate());
+
+            replay.flip();
+            enqueue(replay, true);
+
+            Log.debug(Log.Category.HISTORY, "replayed history", "user", username, "from", from, "messages", frames.size(), "bytes", length);
+            return frames;
         }
-    }
 
-    public static boolean sendToAll(String from, String message, boolean log)
-    {
-        if (message == null || message.isEmpty())
-            return false;
+        /**
+         * Called exactly once when the socket for this connection has been closed, from whichever thread noticed.
+         */
+        protected void closed()
+        {
+            if (!closed.compareAndSet(false, true))
+                return;
 
-        if (log)
-            System.out.println("\"" + from + "\" -> Everyone : \"" + message + "\"");
+            openConnections.remove(this);
+            connected = false;
+            stopTimers();
+            Metrics.connectionsClosed.increment();
 
-        messageHistory.add(new Pair<>(from, message));
+            if (inflater != null)
+                inflater.end();
 
-        for (Handler handler : users.values())
-            handler.out.println("MESSAGE[" + from + "]" + message);
+            Log.info(Log.Category.CONNECTION, "disconnected", "remote", getRemoteAddress(), "user", username, "reason", leaveMessage);
 
-        return true;
-    }
+            if (username != null)
+            {
+                for (String name : joined.toArray(new String[0]))
+                    partChannel(name, false);
 
-    public static boolean sendTo(String from, String to, String message, boolean log)
-    {
-        Handler handler;
+                // a connection whose name was taken over by its client reconnecting leaves without a word
+                if (!users.release(username, this))
+                    return;
 
-        if (message == null || message.isEmpty() || (handler = users.get(to)) == null)
-            return false;
+                if (federation != null)
+                    federation.release(username);
+
+                // on shutdown everyone leaves at once, and has already been told why
+                if (isRunning())
+                    sendToAll("SERVER", username + " has disconnected" + (leaveMessage != null && !(leaveMessage = leaveMessage.trim()).isEmpty() ? " - " + leaveMessage : ""), true);
+            }
+        }
+
+        public String getFormattedConnectionTime()
+        {
+            long seconds = (System.nanoTime() - timeConnected) / 1000000000;
+            long s = seconds % 60;
+            long m = (seconds / 60) % 60;
+            long h = (seconds / (60 * 60)) % 24;
+            long d = (seconds / (60 * 60 * 24));
+            return d <= 0 ? String.format("%02dh %02dm %02ds", h, m, s) : String.format("%dd %02dh %02dm %02ds", d, h, m, s);
+        }
 
-        if (log)
-            System.out.println("\"" + from + "\" -> \"" + to + "\" : \"" + message + "\"");
+        public void kick()
+        {
+            kick("kicked by an admin");
+        }
 
-        handler.out.println("MESSAGE[" + from + "]" + message);
+        public void kick(String reason)
+        {
+            Metrics.kicks.increment();
+            sendUrgent("KICKED " + reason);
+            disconnect(reason);
+            close();
+        }
 
-        return true;
-    }
+        /**
+         * Arms the ping, liveness and inactivity timers. Each timer checks the timestamp it guards when it fires and
+         * re-arms itself for whatever time is left, so a PING or message arriving only has to write a field rather
+         * than reschedule anything.
+         */
+        private void startTimers()
+        {
+            pingTimer = timers.schedule(this::ping, PING_INTERVAL, TimeUnit.NANOSECONDS);
+            livenessTimer = timers.schedule(this::checkLiveness, PING_TIMEOUT, TimeUnit.NANOSECONDS);
+            inactivityTimer = timers.schedule(this::checkInactivity, INACTIVITY_TIMEOUT, TimeUnit.NANOSECONDS);
+        }
 
-    public static synchronized boolean isRunning()
-    {
-        return running;
-    }
+        private void stopTimers()
+        {
+            if (pingTimer != null)
+                pingTimer.cancel();
+            if (livenessTimer != null)
+                livenessTimer.cancel();
+            if (inactivityTimer != null)
+                inactivityTimer.cancel();
+        }
 
-    public static synchronized void setRunning(boolean running)
-    {
-        Server.running = running;
+        private void ping()
+        {
+            if (!isConnected())
+                return;
+
+            send("PING");
+            checkSlowConsumer(System.nanoTime());
+            pingTimer = timers.schedule(this::ping, PING_INTERVAL, TimeUnit.NANOSECONDS);
+        }
+
+        private void checkLiveness()
+        {
+            if (!isConnected())
+                return;
+
+            long remaining = lastPingReceived + PING_TIMEOUT - System.nanoTime();
+
+            if (remaining > 0)
+            {
+                livenessTimer = timers.schedule(this::checkLiveness, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            Metrics.timeouts.increment();
+            sendUrgent("KICKED connection timed out");
+            disconnect("connection timed out");
+            close();
+        }
+
+        private void checkInactivity()
+        {
+            if (!isConnected())
+                return;
+
+            long remaining = lastMessage + INACTIVITY_TIMEOUT - System.nanoTime();
+
+            if (remaining > 0)
+            {
+                inactivityTimer = timers.schedule(this::checkInactivity, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            Metrics.inactivityKicks.increment();
+            sendUrgent("KICKED kicked due to inactivity");
+            disconnect("kicked due to inactivity");
+            close();
+        }
+
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        public void disconnect(String reason)
+        {
+            this.leaveMessage = reason;
+            this.connected = false;
+        }
+
+        public void purge(int count)
+        {
+            send("PURGE " + count);
+        }
     }
 
-    private static class Handler implements Runnable
+    /**
+     * Services a single connection with a dedicated thread doing blocking reads, and a second thread draining the
+     * outbound queue. Neither thread waits while holding a monitor, so both can safely be virtual threads.
+     */
+    private static class Handler extends Connection implements Runnable
     {
         private Socket socket;
-        private PrintWriter out;
-        private String username;
-        private boolean connected;
-        private long timeConnected;
-        private long lastPingReceived;
-        private long lastPingSent;
-        private long lastMessage;
-
-        private String leaveMessage = null;
+        private OutputStream out;
+        private volatile Thread writer;
+        private volatile boolean closing;
 
         public Handler(Socket socket)
         {
             this.socket = socket;
-            this.connected = true;
-            this.timeConnected = System.nanoTime();
-            this.lastPingReceived = System.nanoTime();
-            this.lastMessage = System.nanoTime();
         }
 
         @Override
         public void run()
         {
-            System.out.println("Running connection from socket " + socket);
             try
             {
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                InputStream in = socket.getInputStream();
+                out = new BufferedOutputStream(socket.getOutputStream(), 8192);
 
-                while (isRunning() && isConnected())
-                {
-                    out.println("SUBMIT_NAME");
-                    username = in.readLine();
+                writer = newThread(this::drain);
+                writer.start();
 
-                    if (username == null || username.equals("\0"))
-                    {
-                        System.out.println("Connection cancelled, disconnecting");
-                        socket.close();
-                        return;
-                    }
+                opened();
 
-                    System.out.println("Received username \"" + username + "\"");
+                byte[] chunk = new byte[4096];
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
 
-                    if ((username = username.trim()).isEmpty() || username.length() > 32 || !username.matches("[a-zA-Z0-9]+"))
-                    {
-                        if (username.isEmpty())
-                            out.println("NAME_DENIED No name specified");
-                        if (username.length() > 32)
-                            out.println("NAME_DENIED Name was longer than the maximum (32) character limit");
-                        if (!username.matches("[a-zA-Z0-9]+"))
-                            out.println("NAME_DENIED Name must contain only alphanumeric characters, and no spaces.");
-
-                        System.out.println("Username denied, invalid name");
-                        continue;
-                    }
+                while (isRunning() && isConnected())
+                {
+                    int read = in.read(chunk);
 
-                    synchronized (users)
+                    if (read < 0)
                     {
-                        if (!users.containsKey(username))
-                        {
-                            users.put(username, this);
-                            out.println("NAME_ACCEPTED " + username);
-                            System.out.println("Username accepted");
-                            break;
-                        } else
-                        {
-                            out.println("NAME_DENIED Username is already in use");
-                            System.out.println("Username denied, Already in use");
-                            continue;
-                        }
+                        endOfStream();
+                        break;
                     }
-                }
-
-                for (Pair<String, String> message : messageHistory)
-                    sendTo(message.getKey(), username, message.getValue(), true);
 
-                sendToAll("SERVER", username + " has joined the server!", true);
+                    buffer.clear();
+                    buffer.limit(read);
 
-                while (isRunning() && isConnected())
-                {
-                    try
-                    {
-                        String line = in.readLine();
+                    if (!receive(buffer))
+                        break;
 
-                        long now = System.nanoTime();
+                    // not reading holds the client back through TCP flow control
+                    long delay = throttleDelay();
 
-                        if (line.startsWith("PING"))
-                        {
-                            synchronized (this)
-                            {
-                                lastPingReceived = now;
-                            }
-                        } else if (line.startsWith("DISCONNECT"))
-                        {
-                            leaveMessage = "leaving";
-                            break;
-                        } else
-                        {
-                            sendToAll(username, line, true);
-                            lastMessage = now;
-                        }
-                    } catch (SocketException e)
-                    {
-                    }
+                    if (delay > 0)
+                        LockSupport.parkNanos(this, delay);
                 }
+            } catch (SocketException e)
+            {
+                if (!socket.isClosed())
+                    leaveMessage = e.getMessage();
             } catch (IOException e)
             {
                 e.printStackTrace();
                 leaveMessage = e.getMessage();
             } finally
             {
-                users.remove(username);
-
-                if (username != null && !username.equals("\0"))
-                    sendToAll("SERVER", username + " has disconnected" + (leaveMessage != null && !(leaveMessage = leaveMessage.trim()).isEmpty() ? " - " + leaveMessage : ""), true);
-
-                try
-                {
-                    if (socket != null && !socket.isClosed())
-                        socket.close();
-                } catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-
-                socket = null;
-                disconnect(null);
+                close();
+                closed();
             }
         }
 
-        public String getFormattedConnectionTime()
+        /**
+         * Writes queued buffers until the connection is closed, flushing whenever the queue runs dry so several
+         * messages queued together go out in one write. Once compression starts the same flush becomes a deflate
+         * sync flush, so messages queued together also share one.
+         */
+        private void drain()
         {
-            long seconds = (System.nanoTime() - timeConnected) / 1000000000;
-            long s = seconds % 60;
-            long m = (seconds / 60) % 60;
-            long h = (seconds / (60 * 60)) % 24;
-            long d = (seconds / (60 * 60 * 24));
-            return d <= 0 ? String.format("%02dh %02dm %02ds", h, m, s) : String.format("%dd %02dh %02dm %02ds", d, h, m, s);
-        }
+            byte[] chunk = new byte[8192];
+            Deflater deflater = null;
 
-        public void kick()
-        {
-            out.println("KICKED kicked by an admin");
-            disconnect("kicked by an admin");
             try
             {
-                socket.close();
+                while (true)
+                {
+                    ByteBuffer buffer = outbound.peek();
+
+                    if (buffer == null)
+                    {
+                        out.flush();
+
+                        if (closing && outbound.isEmpty())
+                            break;
+
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    if (buffer == START_DEFLATE)
+                    {
+                        out.flush();
+                        out = new DeflaterOutputStream(out, deflater = newDeflater(), 8192, true);
+                        outbound.remove();
+                        continue;
+                    }
+
+                    while (buffer.hasRemaining())
+                    {
+                        int length = Math.min(buffer.remaining(), chunk.length);
+                        buffer.get(chunk, 0, length);
+                        out.write(chunk, 0, length);
+                        outbound.consumed(length);
+                        Metrics.bytesSent.add(length);
+                    }
+
+                    outbound.remove();
+                }
             } catch (IOException e)
             {
-                e.printStackTrace();
+                // the reader thread will notice the broken socket and clean up
+            } finally
+            {
+                abort();
+
+                if (deflater != null)
+                    deflater.end();
             }
-            System.out.println(isConnected());
         }
 
-        public synchronized void checkTimeout()
+        @Override
+        protected void writeReady()
         {
-            long now = System.nanoTime();
-
-            if (now - lastPingSent > 1000000000L) // 1 second
-            {
-                out.println("PING");
-                lastPingSent = System.nanoTime();
-            }
-
-            if (now - lastPingReceived > 30000000000L) // 30 seconds
-            {
-                out.println("KICKED connection timed out");
-                disconnect("connection timed out");
-            }
+            Thread writer = this.writer;
 
-            if (now - lastMessage > 600000000000L) // 600 seconds
-            {
-                out.println("KICKED kicked due to inactivity");
-                disconnect("kicked due to inactivity");
-            }
+            if (writer != null)
+                LockSupport.unpark(writer);
         }
 
-        public synchronized boolean isConnected()
+        @Override
+        public void close()
         {
-            return connected;
+            closing = true;
+
+            if (writer != null)
+                writeReady();
+            else
+                abort();
         }
 
-        public synchronized void disconnect(String reason)
+        @Override
+        public void abort()
         {
-            this.connected = false;
-            this.leaveMessage = reason;
+            closing = true;
+            writeReady();
+
+            try
+            {
+                if (socket != null && !socket.isClosed())
+                    socket.close();
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
         }
 
-        public synchronized void purge(int count)
+        @Override
+        public SocketAddress getRemoteAddress()
         {
-            out.println("PURGE " + count);
+            return socket.getRemoteSocketAddress();
         }
     }
 
@@ -292,7 +1865,7 @@ public class Server
             @Override
             public void execute(String line)
             {
-                running = false;
+                stop();
             }
         };
 
@@ -306,11 +1879,11 @@ public class Server
                 if (line.length() > name.length())
                 {
                     String username = line.substring(name.length() + 1);
-                    Handler handler = users.get(username);
+                    Connection connection = users.get(username);
 
-                    if (handler != null)
+                    if (connection != null)
                     {
-                        handler.kick();
+                        connection.kick();
                     } else
                     {
                         System.err.println("Unknown user \"" + username + "\"");
@@ -328,11 +1901,35 @@ public class Server
             public void execute(String line)
             {
                 System.out.println("Currently connected users:");
-                for (String user : users.keySet())
+                for (Map.Entry<String, Connection> user : users.entries())
                 {
-                    Handler handler = users.get(user);
-                    System.out.println("\t\"" + user + "\" | " + handler.getFormattedConnectionTime() + " | " + handler.socket.getRemoteSocketAddress());
+                    Connection connection = user.getValue();
+                    System.out.println("\t\"" + user.getKey() + "\" | " + connection.getFormattedConnectionTime() + " | " + connection.getRemoteAddress());
                 }
+
+                if (federation != null)
+                    System.out.println("Linked to " + federation.linkedNodes() + " as \"" + federation.node() + "\", with " + federation.remoteUsers() + " users on other servers");
+            }
+        };
+
+        private static final UpdateHandler COMMAND_STATS = new UpdateHandler("stats", "Shows the server's metrics: counters, latency and rate percentiles, and current gauges.")
+        {
+            @Override
+            public void execute(String line)
+            {
+                for (Map.Entry<String, Long> value : Metrics.snapshot().entrySet())
+                    System.out.printf("\t%-36s %d%n", value.getKey(), value.getValue());
+            }
+        };
+
+        private static final UpdateHandler COMMAND_CHANNELS = new UpdateHandler("channels", "Lists all open channels, with their member count and number of kept messages.")
+        {
+            @Override
+            public void execute(String line)
+            {
+                System.out.println("Open channels:");
+                for (Channel channel : channels.values())
+                    System.out.println("\t\"" + channel.name() + "\" | " + channel.members().size() + " members | " + channel.history().size() + " messages");
             }
         };
 
@@ -341,12 +1938,43 @@ public class Server
             @Override
             public void execute(String line)
             {
-                for (Handler handler : users.values())
-                    handler.purge(0);
+                for (Connection connection : users.connections())
+                    connection.purge(0);
+
+                for (Channel channel : channels.values())
+                    channel.history().clear();
+
+                if (historyLog != null)
+                    historyLog.purge();
+
+                if (searchIndex != null)
+                    searchIndex.purge(messageHistory.nextSequence());
+
+                deliverToAll("SERVER", "Message history purged", true);
+            }
+        };
+
+        private static final UpdateHandler COMMAND_SEARCH = new UpdateHandler("search", "Searches past messages for every given word. A word of the form from:name matches the sender.")
+        {
+            @Override
+            public void execute(String line)
+            {
+                line = line.trim();
 
-                messageHistory.clear();
+                if (searchIndex == null)
+                {
+                    System.err.println("Searching is turned off.");
+                } else if (line.length() > name.length())
+                {
+                    SearchIndex.Results results = searchIndex.search(line.substring(name.length() + 1), 0);
+                    System.out.println(results.total + " matching messages" + (results.total > results.hits.size() ? ", newest " + results.hits.size() + ":" : ":"));
 
-                sendToAll("SERVER", "Message history purged", true);
+                    for (Frame hit : results.hits)
+                        System.out.println("\t" + hit.line());
+                } else
+                {
+                    System.err.println("Unspecified search.");
+                }
             }
         };
 
@@ -362,7 +1990,7 @@ public class Server
 
         private static void startCommandThread()
         {
-            new Thread(() -> {
+            newThread(() -> {
                 Scanner scanner = new Scanner(System.in);
 
                 while (isRunning())
@@ -383,9 +2011,18 @@ public class Server
                         {
                             for (UpdateHandler c : allCommands)
                                 System.out.println(c.name + ":\t" + c.description + "\n");
+                        } else if (command.equals("stats"))
+                        {
+                            COMMAND_STATS.execute(command);
+                        } else if (command.equals("channels"))
+                        {
+                            COMMAND_CHANNELS.execute(command);
                         } else if (command.equals("purge"))
                         {
                             COMMAND_PURGE.execute(command);
+                        } else if (command.startsWith("search"))
+                        {
+                            COMMAND_SEARCH.execute(command);
                         } else
                         {
                             System.out.println("Unknown command \"" + command + "\"");
@@ -395,25 +2032,6 @@ public class Server
             }).start();
         }
 
-        private static void startTimeoutThread()
-        {
-            new Thread(() -> {
-                while (isRunning())
-                {
-                    for (Handler handler : users.values())
-                        handler.checkTimeout();
-
-                    try
-                    {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e)
-                    {
-                        e.printStackTrace();
-                    }
-                }
-            }).start();
-        }
-
         public abstract void execute(String line);
     }
 }
@@ -0,0 +1,215 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hierarchical timing wheel: four levels of 64 slots, each level 64 times coarser than the one below it. A timeout
+ * is filed in the lowest level whose range covers its deadline, and is moved down a level each time the wheel below
+ * completes a revolution, so scheduling, cancelling and expiring are all O(1) no matter how many timeouts are
+ * pending or how far away they are.
+ * <p>
+ * All wheel state is owned by one thread. Other threads hand new timeouts over through a lock-free queue, and
+ * cancelling only sets a flag, with the timeout discarded when its slot comes round. While anything is scheduled the
+ * thread wakes once a tick, however many timeouts there are, so its idle cost is fixed rather than per user; on a
+ * server that is always the case, as the metrics sampler reschedules itself every second. Only a wheel with nothing
+ * scheduled at all parks indefinitely.
+ *
+ * @author Kelan
+ */
+public class TimingWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final List<Timeout>[][] wheels;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startTime;
+    private long currentTick;
+    private int size;
+    private List<Timeout> expiring = new ArrayList<>();
+    private volatile boolean running = true;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, ThreadFactory threadFactory)
+    {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheels = new List[LEVELS][SLOTS];
+
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                wheels[level][slot] = new ArrayList<>();
+
+        this.startTime = System.nanoTime();
+        this.thread = threadFactory.newThread(this::run);
+        this.thread.setName("timing-wheel");
+        this.thread.start();
+    }
+
+    /**
+     * Runs {@code task} on the wheel's thread once {@code delay} has passed, rounded up to the next tick. Tasks must
+     * not block, since every other timeout waits for them.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+
+        pending.add(timeout);
+        LockSupport.unpark(thread);
+        return timeout;
+    }
+
+    public void stop()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run()
+    {
+        while (running)
+        {
+            long now = System.nanoTime() - startTime;
+            long nowTick = now / tickNanos;
+
+            if (size == 0)
+            {
+                if (pending.isEmpty())
+                {
+                    currentTick = Math.max(currentTick, nowTick);
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                // nothing is filed, so there is no need to step through the ticks spent parked
+                currentTick = Math.max(currentTick, nowTick - 1);
+            }
+
+            while (currentTick < nowTick)
+                tick();
+
+            long sleep = (currentTick + 1) * tickNanos - (System.nanoTime() - startTime);
+
+            if (sleep > 0)
+                LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void tick()
+    {
+        currentTick++;
+
+        for (int level = LEVELS - 1; level > 0; level--)
+        {
+            long shift = SLOT_BITS * level;
+
+            if ((currentTick & ((1L << shift) - 1)) == 0)
+                cascade(level, (int) ((currentTick >>> shift) & (SLOTS - 1)));
+        }
+
+        transferPending();
+
+        List<Timeout> slot = wheels[0][(int) (currentTick & (SLOTS - 1))];
+
+        if (slot.isEmpty())
+            return;
+
+        wheels[0][(int) (currentTick & (SLOTS - 1))] = expiring;
+        expiring = slot;
+        size -= slot.size();
+
+        for (Timeout timeout : slot)
+        {
+            if (timeout.cancelled)
+                continue;
+
+            if (timeout.deadline > currentTick)
+            {
+                insert(timeout);
+                continue;
+            }
+
+            try
+            {
+                timeout.task.run();
+            } catch (Throwable t)
+            {
+                t.printStackTrace();
+            }
+        }
+
+        slot.clear();
+    }
+
+    private void cascade(int level, int index)
+    {
+        List<Timeout> slot = wheels[level][index];
+
+        if (slot.isEmpty())
+            return;
+
+        wheels[level][index] = new ArrayList<>();
+        size -= slot.size();
+
+        for (Timeout timeout : slot)
+            if (!timeout.cancelled)
+                insert(timeout);
+    }
+
+    private void transferPending()
+    {
+        Timeout timeout;
+
+        while ((timeout = pending.poll()) != null)
+            if (!timeout.cancelled)
+                insert(timeout);
+    }
+
+    private void insert(Timeout timeout)
+    {
+        long deadline = Math.max(timeout.deadline, currentTick);
+        long delta = Math.min(deadline - currentTick, MAX_DELTA);
+        int level = 0;
+
+        while (delta >= (1L << (SLOT_BITS * (level + 1))))
+            level++;
+
+        long slotTick = currentTick + delta;
+
+        wheels[level][(int) ((slotTick >>> (SLOT_BITS * level)) & (SLOTS - 1))].add(timeout);
+        size++;
+    }
+
+    public static class Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket refilled at a fixed rate, kept as the single time at which it would be full again (the generic
+ * cell rate algorithm). Taking tokens is one compare-and-set with no lock and no refill loop, so a bucket can sit on
+ * every read and be shared between threads.
+ * <p>
+ * Taking never fails. A caller that takes more than the bucket holds goes into debt, and is told how long it has to
+ * wait until it is back within its burst, which makes it easy to throttle by simply not reading for that long.
+ *
+ * @author Kelan
+ */
+public class TokenBucket
+{
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param rate  tokens added per second.
+     * @param burst tokens the bucket holds when full.
+     */
+    public TokenBucket(long rate, long burst)
+    {
+        this.interval = 1000000000L / Math.max(1, rate);
+        this.tolerance = interval * Math.max(1, burst);
+    }
+
+    /**
+     * Creates a bucket for a limit given as tokens per second, where zero or less means unlimited.
+     *
+     * @return null for unlimited.
+     */
+    public static TokenBucket perSecond(long rate, long burst)
+    {
+        return rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    /**
+     * Takes {@code amount} tokens.
+     *
+     * @return how many nanoseconds the caller should wait before taking more, or zero if the bucket is not in debt.
+     */
+    public long take(long amount, long now)
+    {
+        long cost = amount * interval;
+
+        while (true)
+        {
+            long previous = full.get();
+            long next = Math.max(previous, now) + cost;
+
+            if (full.compareAndSet(previous, next))
+                return Math.max(0, next - now - tolerance);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package main;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps usernames to the connections that own them. Every operation is lock-free: claiming a name is a single
+ * atomic put-if-absent, and iterating {@link #connections()} or {@link #entries()} never blocks writers. Iteration
+ * is weakly consistent, so a broadcast sees every user that was registered when it started and may or may not see
+ * users that join or leave while it is running, but it never throws.
+ *
+ * @author Kelan
+ */
+public class UserRegistry<T>
+{
+    private final ConcurrentHashMap<String, T> users = new ConcurrentHashMap<>();
+
+    /**
+     * Registers {@code connection} under {@code name} if nobody else holds it.
+     *
+     * @return true if the name was claimed, false if it is already in use.
+     */
+    public boolean claim(String name, T connection)
+    {
+        return users.putIfAbsent(name, connection) == null;
+    }
+
+    /**
+     * Removes {@code name} only if it is still held by {@code connection}, so a late cleanup can never remove a
+     * different user that has since claimed the same name.
+     */
+    public boolean release(String name, T connection)
+    {
+        return name != null && users.remove(name, connection);
+    }
+
+    /**
+     * Hands {@code name} from {@code current} to {@code connection}, only if {@code current} still holds it.
+     */
+    public boolean replace(String name, T current, T connection)
+    {
+        return users.replace(name, current, connection);
+    }
+
+    public T get(String name)
+    {
+        return name != null ? users.get(name) : null;
+    }
+
+    public boolean contains(String name)
+    {
+        return users.containsKey(name);
+    }
+
+    public int size()
+    {
+        return users.size();
+    }
+
+    public Collection<T> connections()
+    {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    public Set<Map.Entry<String, T>> entries()
+    {
+        return Collections.unmodifiableSet(users.entrySet());
+    }
+}
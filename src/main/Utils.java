@@ -1,5 +1,9 @@
 package main;
 
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 /**
@@ -7,13 +11,81 @@ import java.util.regex.Pattern;
  */
 public class Utils
 {
+    private static final String ADDRESS = "^(((?!-)[A-Za-z0-9-]{1,63}(?<!-)\\.)+[A-Za-z]{2,6}|localhost|(([0-9]{1,3}\\.){3})[0-9]{1,3})";
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile(ADDRESS + "$");
+    private static final Pattern ADDRESS_PORT_PATTERN = Pattern.compile(ADDRESS + ":[0-9]{1,5}$");
+
     public static boolean validateIPv4(String ip, boolean port)
     {
         if (ip == null)
             return false;
 
-        Pattern pattern = Pattern.compile("^(((?!-)[A-Za-z0-9-]{1,63}(?<!-)\\.)+[A-Za-z]{2,6}|localhost|(([0-9]{1,3}\\.){3})[0-9]{1,3})" + (port ? ":[0-9]{1,5}" : "") + "$");
+        return (port ? ADDRESS_PORT_PATTERN : ADDRESS_PATTERN).matcher(ip).matches();
+    }
+
+    /**
+     * Whether the string is non-empty and made only of ASCII letters and digits.
+     */
+    public static boolean isAlphanumeric(String s)
+    {
+        if (s == null || s.isEmpty())
+            return false;
+
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses command line arguments of the form {@code --key=value} (or {@code --flag}, which maps to "true").
+     */
+    public static Map<String, String> parseOptions(String[] args)
+    {
+        Map<String, String> options = new HashMap<>();
+
+        if (args == null)
+            return options;
+
+        for (String arg : args)
+        {
+            if (arg == null || !arg.startsWith("--") || arg.length() <= 2)
+            {
+                System.err.println("Ignoring unrecognised argument \"" + arg + "\"");
+                continue;
+            }
+
+            int i = arg.indexOf('=');
 
-        return pattern.matcher(ip).matches();
+            if (i < 0)
+                options.put(arg.substring(2), "true");
+            else
+                options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+
+        return options;
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()} reflectively, so this still compiles and runs on JDKs without
+     * virtual threads. Returns null when they are unavailable.
+     */
+    public static ThreadFactory virtualThreadFactory()
+    {
+        try
+        {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return null;
+        }
     }
 }
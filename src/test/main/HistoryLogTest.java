@@ -0,0 +1,52 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Kelan
+ */
+class HistoryLogTest
+{
+    @Test
+    void recordsAreReadBackAfterReopeningAndATornWriteIsCutOff(@TempDir Path directory) throws Exception
+    {
+        HistoryLog log = new HistoryLog(directory.toFile(), 1 << 20, 4, HistoryLog.FsyncPolicy.NEVER, 0);
+
+        for (int i = 0; i < 5; i++)
+            log.append(ByteBuffer.wrap(("record " + i).getBytes(StandardCharsets.UTF_8)));
+
+        log.close(5000);
+
+        File[] segments = directory.toFile().listFiles();
+        assertEquals(1, segments.length);
+        Files.write(segments[0].toPath(), new byte[]{0, 0, 0, 9, 1, 2}, StandardOpenOption.APPEND);
+
+        log = new HistoryLog(directory.toFile(), 1 << 20, 4, HistoryLog.FsyncPolicy.NEVER, 0);
+        log.append(ByteBuffer.wrap("record 5".getBytes(StandardCharsets.UTF_8)));
+        log.close(5000);
+
+        assertEquals(List.of("record 3", "record 4", "record 5"), text(log.readLast(3)));
+    }
+
+    private static List<String> text(List<ByteBuffer> records)
+    {
+        List<String> text = new ArrayList<>();
+
+        for (ByteBuffer record : records)
+            text.add(StandardCharsets.UTF_8.decode(record).toString());
+
+        return text;
+    }
+}
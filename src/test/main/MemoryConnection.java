@@ -0,0 +1,79 @@
+package main;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A connection with no socket behind it, like the benchmarks' one, that also keeps what the server sends it so a
+ * test can look at it. Whatever is queued for it is consumed straight away on the sending thread.
+ *
+ * @author Kelan
+ */
+class MemoryConnection extends Server.Connection
+{
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    private final StringBuilder received = new StringBuilder();
+
+    /**
+     * Opens a connection and completes the handshake under the given name.
+     */
+    static MemoryConnection named(String name)
+    {
+        MemoryConnection connection = new MemoryConnection();
+        connection.opened();
+        connection.type(name);
+        return connection;
+    }
+
+    /**
+     * Receives one text line from the client.
+     */
+    void type(String line)
+    {
+        receive(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Everything received since the last call.
+     */
+    String take()
+    {
+        String text = received.toString();
+        received.setLength(0);
+        return text;
+    }
+
+    @Override
+    protected void writeReady()
+    {
+        ByteBuffer buffer;
+
+        while ((buffer = outbound.peek()) != null)
+        {
+            outbound.consumed(buffer.remaining());
+            received.append(StandardCharsets.UTF_8.decode(buffer));
+            outbound.remove();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        closed();
+    }
+
+    @Override
+    public void abort()
+    {
+        closed();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress()
+    {
+        return ADDRESS;
+    }
+}
@@ -0,0 +1,104 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author Kelan
+ */
+class MessageHistoryTest
+{
+    @Test
+    void wrappingAroundKeepsTheNewestMessages()
+    {
+        MessageHistory history = new MessageHistory(4, Long.MAX_VALUE);
+
+        for (int i = 0; i < 10; i++)
+            history.add(message(i, 10));
+
+        assertEquals(List.of(6L, 7L, 8L, 9L), sequences(history.snapshot()));
+        assertEquals(4 * size(10), history.bytes());
+        assertEquals(List.of(6L, 7L, 8L, 9L), sequences(history.since(6)));
+        assertNull(history.since(5));
+    }
+
+    @Test
+    void theByteLimitEvictsTheOldestMessagesAfterWrappingAround()
+    {
+        MessageHistory history = new MessageHistory(4, 3 * size(10));
+
+        for (int i = 0; i < 10; i++)
+            history.add(message(i, 10));
+
+        assertEquals(List.of(7L, 8L, 9L), sequences(history.snapshot()));
+        assertEquals(3 * size(10), history.bytes());
+
+        // twice the size of the others, so the two oldest have to go
+        history.add(message(10, 10 + size(10)));
+
+        assertEquals(List.of(9L, 10L), sequences(history.snapshot()));
+        assertEquals(3 * size(10), history.bytes());
+        assertNull(history.since(8));
+    }
+
+    @Test
+    void concurrentWritersKeepTheByteCountInStepWithWhatIsRetained() throws Exception
+    {
+        MessageHistory history = new MessageHistory(16, 800);
+        Thread[] writers = new Thread[8];
+
+        for (int i = 0; i < writers.length; i++)
+        {
+            writers[i] = new Thread(() ->
+            {
+                for (int j = 0; j < 20000; j++)
+                    history.add(message(j, ThreadLocalRandom.current().nextInt(1, 80)));
+            });
+            writers[i].start();
+        }
+
+        for (Thread writer : writers)
+            writer.join();
+
+        long retained = 0;
+
+        for (Frame frame : history.snapshot())
+            retained += frame.size();
+
+        assertEquals(retained, history.bytes());
+    }
+
+    private static Frame message(int i, int length)
+    {
+        StringBuilder body = new StringBuilder(length);
+
+        while (body.length() < length)
+            body.append((char) ('a' + (i + body.length()) % 26));
+
+        return Frame.of("MESSAGE[alice]" + body);
+    }
+
+    /**
+     * Size of a message with a body of the given length.
+     */
+    private static int size(int length)
+    {
+        return message(0, length).size();
+    }
+
+    private static List<Long> sequences(List<Frame> frames)
+    {
+        List<Long> sequences = new ArrayList<>();
+
+        for (Frame frame : frames)
+            sequences.add(frame.sequence());
+
+        return sequences;
+    }
+}
@@ -0,0 +1,76 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Kelan
+ */
+class ProtocolTest
+{
+    private static final String[] BODIES = {"", "plain", "two\nlines", "a literal \\n stays", "C:\\new\\table", "trailing \\", "\\\\n", "\n\\\n"};
+
+    @Test
+    void unescapeUndoesEscape()
+    {
+        for (String body : BODIES)
+            assertEquals(body, Protocol.unescape(Protocol.escape(body)));
+    }
+
+    @Test
+    void escapedBodiesFitOnOneLine()
+    {
+        for (String body : BODIES)
+            assertEquals(-1, Protocol.escape(body).indexOf('\n'));
+    }
+
+    @Test
+    void unpairedBackslashesFromOlderClientsAreKept()
+    {
+        assertEquals("a\\b", Protocol.unescape("a\\b"));
+        assertEquals("end\\", Protocol.unescape("end\\"));
+    }
+
+    @Test
+    void binaryMessagesCarryTheRawBody()
+    {
+        for (String body : BODIES)
+        {
+            ByteBuffer frame = Protocol.toBinary("MESSAGE[alice]" + Protocol.escape(body));
+            frame.position(Protocol.HEADER_SIZE);
+
+            assertArrayEquals(new String[]{"alice", body}, Protocol.decode(Protocol.MESSAGE, frame));
+            assertEquals("MESSAGE[alice]" + Protocol.escape(body), Protocol.toText(Protocol.MESSAGE, new String[]{"alice", body}));
+        }
+    }
+
+    @Test
+    void binaryChatRequestsCarryTheRawBody()
+    {
+        for (String body : BODIES)
+        {
+            ByteBuffer frame = Protocol.encode(Protocol.CHAT, body);
+            frame.position(Protocol.HEADER_SIZE);
+
+            assertArrayEquals(new String[]{body}, Protocol.decode(Protocol.CHAT, frame));
+        }
+    }
+
+    @Test
+    void chatTypedAsACommandIsSentAsChat()
+    {
+        for (String body : new String[]{"JOIN #x", "/JOIN #x", "//JOIN #x", "/MSG #x hi", "PING me", "/"})
+        {
+            byte[] line = Protocol.toText(Protocol.CHAT, new String[]{body}).getBytes(StandardCharsets.UTF_8);
+            int offset = Protocol.chatOffset(line, line.length);
+
+            assertEquals(Protocol.CHAT, Protocol.requestType(line, line.length));
+            assertEquals(body, Protocol.unescape(new String(line, offset, line.length - offset, StandardCharsets.UTF_8)));
+        }
+    }
+}
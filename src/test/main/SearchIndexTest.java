@@ -0,0 +1,115 @@
+package main;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * @author Kelan
+ */
+class SearchIndexTest
+{
+    private SearchIndex index;
+
+    @AfterEach
+    void close()
+    {
+        if (index != null)
+            index.close();
+    }
+
+    @Test
+    void wordsAreRunsOfLettersAndDigitsMatchedRegardlessOfCase() throws Exception
+    {
+        index = new SearchIndex(100);
+        add("alice", "Meet at HALF-past 3, ok?");
+        add("bob", "line one\\nline two");
+        add("carol", "pneumonoultramicroscopicsilicovolcanoconiosis");
+        awaitIndexed(3);
+
+        assertEquals(List.of("alice"), senders(index.search("half past", 0)));
+        assertEquals(List.of("alice"), senders(index.search("MEET 3", 0)));
+        assertEquals(List.of(), senders(index.search("half-pastry", 0)));
+        assertEquals(List.of("bob"), senders(index.search("one two", 0)));
+        // words are cut to 32 characters, in queries too
+        assertEquals(List.of("carol"), senders(index.search("pneumonoultramicroscopicsilicovo", 0)));
+        assertEquals(List.of("carol"), senders(index.search("pneumonoultramicroscopicsilicovolcanoes", 0)));
+        assertEquals(List.of(), senders(index.search("pneumonoultramicroscopicsilicov", 0)));
+    }
+
+    @Test
+    void everyWordMustMatchAndTheNewestComeFirst() throws Exception
+    {
+        index = new SearchIndex(100);
+        add("alice", "red apple");
+        add("bob", "green apple");
+        add("carol", "red cherry");
+        add("dave", "red apple pie");
+        awaitIndexed(4);
+
+        assertEquals(List.of("dave", "alice"), senders(index.search("apple red", 0)));
+        assertEquals(List.of("dave", "carol", "alice"), senders(index.search("red", 0)));
+        assertEquals(List.of(), senders(index.search("red banana", 0)));
+        assertEquals(3, index.search("red", 0).total);
+    }
+
+    @Test
+    void onlyTheMostRecentRingIsFound() throws Exception
+    {
+        index = new SearchIndex(4);
+
+        for (int i = 0; i < 10; i++)
+            add("user" + i, "ping number" + i);
+
+        awaitIndexed(4);
+
+        assertEquals(List.of("user9", "user8", "user7", "user6"), senders(index.search("ping", 0)));
+        assertEquals(List.of(), senders(index.search("number5", 0)));
+    }
+
+    @Test
+    void fromMatchesTheSenderWithItsCaseAsItIs() throws Exception
+    {
+        index = new SearchIndex(100);
+        add("Alice", "hello from the big alice");
+        add("alice", "hello from the small one");
+        add("bob", "hello alice");
+        awaitIndexed(3);
+
+        assertEquals(List.of("Alice"), senders(index.search("FROM:Alice hello", 0)));
+        assertEquals(List.of("alice"), senders(index.search("from:alice hello", 0)));
+        assertEquals(List.of("bob", "Alice"), senders(index.search("alice", 0)));
+        assertEquals(List.of("Alice"), senders(index.search("from:Alice alice", 0)));
+        assertEquals(List.of(), senders(index.search("from:ALICE", 0)));
+    }
+
+    private void add(String from, String body)
+    {
+        index.add(Frame.of("MESSAGE[" + from + "]" + body));
+    }
+
+    private void awaitIndexed(int size) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + 5000000000L;
+
+        while (index.size() < size && System.nanoTime() < deadline)
+            Thread.sleep(1);
+
+        Thread.sleep(10);
+        assertEquals(size, index.size());
+    }
+
+    private static List<String> senders(SearchIndex.Results results)
+    {
+        List<String> senders = new ArrayList<>();
+
+        for (Frame hit : results.hits)
+            senders.add(ChatClient.parseMessage(hit.line())[0]);
+
+        return senders;
+    }
+}
@@ -0,0 +1,131 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author Kelan
+ */
+class ServerTest
+{
+    @Test
+    void configuringAgainStopsThePreviousBackgroundThreads(@TempDir Path history) throws Exception
+    {
+        String[] args = {"--log-level=off", "--search-index=100", "--history-dir=" + history};
+
+        Server.configure(args);
+        Server.configure(args);
+        Server.configure(args);
+
+        assertEquals(1, awaitThreads("timing-wheel"));
+        assertEquals(1, awaitThreads("search-index"));
+        assertEquals(1, awaitThreads("history-log"));
+    }
+
+    @Test
+    void chatStartingWithACommandWordIsBroadcastUnchanged() throws Exception
+    {
+        Server.configure(new String[]{"--log-level=off"});
+
+        MemoryConnection alice = MemoryConnection.named("alice");
+        MemoryConnection bob = MemoryConnection.named("bob");
+        bob.take();
+
+        alice.type("JOIN the party tonight");
+        alice.type("MSG me later");
+        alice.type("SEARCH for meaning");
+        alice.type("PART of the plan");
+        alice.type("//JOIN is how you join a channel");
+
+        assertEquals("MESSAGE[alice]JOIN the party tonight\n" +
+                "MESSAGE[alice]MSG me later\n" +
+                "MESSAGE[alice]SEARCH for meaning\n" +
+                "MESSAGE[alice]PART of the plan\n" +
+                "MESSAGE[alice]/JOIN is how you join a channel\n", bob.take());
+
+        alice.type("/JOIN #party");
+        assertTrue(alice.take().contains("JOINED #party"));
+        assertFalse(bob.take().contains("MESSAGE[alice]"));
+
+        alice.close();
+        bob.close();
+    }
+
+    /**
+     * What DispatchBenchmark checks with {@code -prof gc}: once warmed up, a ping allocates nothing in either
+     * framing.
+     */
+    @Test
+    void pingsAllocateNothingInEitherFraming() throws Exception
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Server.configure(new String[]{"--log-level=off", "--flood-messages=0", "--flood-bytes=0", "--compression=none"});
+
+        MemoryConnection binary = new MemoryConnection();
+        binary.opened();
+        binary.type("FRAMING binary");
+        binary.receive(Protocol.encode(Protocol.NAME, "pingbinary"));
+        assertEquals(Protocol.Framing.BINARY, binary.framing);
+
+        MemoryConnection text = MemoryConnection.named("pingtext");
+
+        assertEquals(0, allocatedByPings(binary, Protocol.encode(Protocol.PING, "")));
+        assertEquals(0, allocatedByPings(text, ByteBuffer.wrap("PING\n".getBytes(StandardCharsets.US_ASCII))));
+
+        binary.close();
+        text.close();
+    }
+
+    /**
+     * Bytes allocated by this thread while the connection receives a run of pings, after enough of them for the
+     * dispatch path to be compiled.
+     */
+    private static long allocatedByPings(MemoryConnection connection, ByteBuffer ping)
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < 200000; i++)
+        {
+            ping.rewind();
+            connection.receive(ping);
+        }
+
+        // reading the counter can allocate too, so that much is taken off
+        long first = threads.getThreadAllocatedBytes(thread);
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = before - first;
+
+        for (int i = 0; i < 100000; i++)
+        {
+            ping.rewind();
+            connection.receive(ping);
+        }
+
+        return threads.getThreadAllocatedBytes(thread) - before - overhead;
+    }
+
+    /**
+     * Counts the live threads with the given name, giving stopped ones a moment to finish.
+     */
+    private static long awaitThreads(String name) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + 5000000000L;
+        long count;
+
+        while ((count = Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals(name)).count()) > 1 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+
+        return count;
+    }
+}
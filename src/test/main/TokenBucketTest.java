@@ -0,0 +1,78 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * @author Kelan
+ */
+class TokenBucketTest
+{
+    private static final long START = 1000000000000L;
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    void aFullBucketAllowsItsBurstWithoutWaiting()
+    {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(0, bucket.take(1, START));
+
+        assertEquals(100 * MILLIS, bucket.take(1, START));
+        assertEquals(200 * MILLIS, bucket.take(1, START));
+    }
+
+    @Test
+    void takingMoreThanTheBurstGoesIntoDebt()
+    {
+        TokenBucket bucket = new TokenBucket(10, 5);
+
+        assertEquals(500 * MILLIS, bucket.take(10, START));
+        assertEquals(600 * MILLIS, bucket.take(1, START));
+    }
+
+    @Test
+    void tokensComeBackAtTheRate()
+    {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        bucket.take(5, START);
+
+        assertEquals(0, bucket.take(1, START + 100 * MILLIS));
+        assertEquals(50 * MILLIS, bucket.take(1, START + 150 * MILLIS));
+
+        // waiting out the debt leaves the bucket exactly full again
+        assertEquals(0, bucket.take(5, START + 700 * MILLIS));
+        assertEquals(100 * MILLIS, bucket.take(1, START + 700 * MILLIS));
+    }
+
+    @Test
+    void idleTimeNeverFillsTheBucketPastItsBurst()
+    {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        bucket.take(1, START);
+
+        assertEquals(0, bucket.take(5, START + 3600000 * MILLIS));
+        assertEquals(100 * MILLIS, bucket.take(1, START + 3600000 * MILLIS));
+    }
+
+    @Test
+    void aBurstOfZeroStillAllowsOneToken()
+    {
+        TokenBucket bucket = new TokenBucket(10, 0);
+
+        assertEquals(0, bucket.take(1, START));
+        assertEquals(100 * MILLIS, bucket.take(1, START));
+    }
+
+    @Test
+    void aRateOfZeroOrLessIsUnlimited()
+    {
+        assertNull(TokenBucket.perSecond(0, 10));
+        assertNull(TokenBucket.perSecond(-1, 10));
+        assertNotNull(TokenBucket.perSecond(1, 0));
+    }
+}